@@ -0,0 +1,24 @@
+package com.beyond.delta;
+
+import lombok.Data;
+
+/**
+ * delta 计算的资源上限
+ */
+@Data
+public class DeltaLimits {
+
+    /**
+     * base 或 target 超过这个大小不做 delta
+     */
+    private long maxObjectSize = 16 * 1024 * 1024;
+
+    /**
+     * 按字节匹配时 hash 表等结构的预估内存上限, 超过时文本改用按行匹配, 二进制不做 delta
+     */
+    private long maxIndexMemory = 64 * 1024 * 1024;
+
+    public static DeltaLimits defaults() {
+        return new DeltaLimits();
+    }
+}
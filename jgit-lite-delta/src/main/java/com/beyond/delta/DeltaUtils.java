@@ -18,7 +18,46 @@ public class DeltaUtils {
 
     private static final Formatter formatter = Formatter.newInstance();
 
+    /**
+     * 按字节匹配时每个 base 字节 (OriginChunk + Range + hash 字符串 + map entry, 每 NHASH 字节一份)
+     * 和每个 target 字节 (Slice + Candidate) 大致占用的堆内存
+     */
+    private static final int BYTE_INDEX_COST_PER_BASE_BYTE = 64;
+    private static final int BYTE_INDEX_COST_PER_TARGET_BYTE = 96;
+
+    /**
+     * 文本按行做 delta, 其他按字节
+     */
     public static List<Delta> makeDeltas(byte[] target, byte[] base) {
+        if (LineDeltaMaker.isLineOriented(target) && LineDeltaMaker.isLineOriented(base)) {
+            return LineDeltaMaker.makeDeltas(target, base);
+        }
+        return makeByteDeltas(target, base);
+    }
+
+    /**
+     * 按 limits 限制资源, 超过上限时返回 null, 调用方应当直接存完整对象
+     */
+    public static List<Delta> makeDeltas(byte[] target, byte[] base, DeltaLimits limits) {
+        if (target.length > limits.getMaxObjectSize() || base.length > limits.getMaxObjectSize()) {
+            return null;
+        }
+        boolean text = LineDeltaMaker.isText(target) && LineDeltaMaker.isText(base);
+        if (text && LineDeltaMaker.isLineOriented(target) && LineDeltaMaker.isLineOriented(base)) {
+            return LineDeltaMaker.makeDeltas(target, base);
+        }
+        if (estimateByteDeltaMemory(target, base) <= limits.getMaxIndexMemory()) {
+            return makeByteDeltas(target, base);
+        }
+        // 按行匹配只需要几个 int 数组
+        return text ? LineDeltaMaker.makeDeltas(target, base) : null;
+    }
+
+    public static long estimateByteDeltaMemory(byte[] target, byte[] base) {
+        return (long) base.length * BYTE_INDEX_COST_PER_BASE_BYTE + (long) target.length * BYTE_INDEX_COST_PER_TARGET_BYTE;
+    }
+
+    public static List<Delta> makeByteDeltas(byte[] target, byte[] base) {
         MultiValuedMap<String, OriginChunk> originChunkMap = new ArrayListValuedHashMap<>();
         byte[] tmp = new byte[NHASH];
         for (int i = 0; i < base.length; i++) {
@@ -0,0 +1,226 @@
+package com.beyond.delta;
+
+import com.beyond.delta.entity.CopyRangeDelta;
+import com.beyond.delta.entity.Delta;
+import com.beyond.delta.entity.InsertLiterDelta;
+import com.beyond.delta.entity.Range;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 按行做 delta, 适合 markdown/json 这类文本.
+ * <p>
+ * base 按行算 hash 建索引, target 逐行查找 base 中相同的行并向后尽量延伸, 得到的都是整行的长 copy,
+ * 没匹配上的行合并成一个 insert. 输出格式和 {@link DeltaUtils#makeDeltas(byte[], byte[])} 一样.
+ */
+public class LineDeltaMaker {
+
+    /**
+     * 与 git 一致, 只看前 8000 字节
+     */
+    private static final int SNIFF_LENGTH = 8000;
+
+    /**
+     * 平均行长超过这个值 (比如压缩过的 json) 按行匹配没有意义
+     */
+    private static final int MAX_AVG_LINE_LENGTH = 512;
+
+    /**
+     * 短于这个长度的 copy 比直接 insert 还费字节
+     */
+    private static final int MIN_COPY_LENGTH = 8;
+
+    /**
+     * 同一个 hash 最多比较的候选行, 防止大量空行时退化
+     */
+    private static final int MAX_CANDIDATES = 64;
+
+    public static boolean isText(byte[] bytes) {
+        int len = Math.min(bytes.length, SNIFF_LENGTH);
+        for (int i = 0; i < len; i++) {
+            if (bytes[i] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 是文本并且有足够多的换行
+     */
+    public static boolean isLineOriented(byte[] bytes) {
+        if (!isText(bytes)) {
+            return false;
+        }
+        int len = Math.min(bytes.length, SNIFF_LENGTH);
+        int lines = 1;
+        for (int i = 0; i < len; i++) {
+            if (bytes[i] == '\n') {
+                lines++;
+            }
+        }
+        return len / lines <= MAX_AVG_LINE_LENGTH;
+    }
+
+    public static List<Delta> makeDeltas(byte[] target, byte[] base) {
+        int[] baseLines = lineEnds(base);
+        int[] baseHashes = lineHashes(base, baseLines);
+
+        // hash 表: 开放链表, head[bucket] -> 行号, next[行号] -> 同桶下一行
+        int bucketCount = Integer.highestOneBit(Math.max(baseLines.length, 1)) << 1;
+        int[] head = new int[bucketCount];
+        int[] next = new int[baseLines.length];
+        Arrays.fill(head, -1);
+        // 倒序插入, 链表里行号从小到大
+        for (int i = baseLines.length - 1; i >= 0; i--) {
+            int bucket = baseHashes[i] & (bucketCount - 1);
+            next[i] = head[bucket];
+            head[bucket] = i;
+        }
+
+        int[] targetLines = lineEnds(target);
+        int[] targetHashes = lineHashes(target, targetLines);
+
+        List<Delta> deltas = new LinkedList<>();
+        int literalStart = 0;
+        int t = 0;
+        while (t < targetLines.length) {
+            int bestBaseLine = -1;
+            int bestLineCount = 0;
+            int bestLength = 0;
+            int candidates = 0;
+            for (int b = head[targetHashes[t] & (bucketCount - 1)]; b >= 0 && candidates < MAX_CANDIDATES; b = next[b]) {
+                if (baseHashes[b] != targetHashes[t]) {
+                    continue;
+                }
+                candidates++;
+                int count = 0;
+                while (t + count < targetLines.length && b + count < baseLines.length
+                        && baseHashes[b + count] == targetHashes[t + count]
+                        && lineEquals(target, targetLines, t + count, base, baseLines, b + count)) {
+                    count++;
+                }
+                if (count == 0) {
+                    continue;
+                }
+                int length = lineStart(baseLines, b + count) - lineStart(baseLines, b);
+                if (length > bestLength) {
+                    bestBaseLine = b;
+                    bestLineCount = count;
+                    bestLength = length;
+                }
+            }
+
+            if (bestLength < MIN_COPY_LENGTH) {
+                t++;
+                continue;
+            }
+
+            int targetStart = lineStart(targetLines, t);
+            if (literalStart < targetStart) {
+                Range range = new Range(literalStart, targetStart);
+                deltas.add(new InsertLiterDelta(range, range.read(target)));
+            }
+            int baseStart = lineStart(baseLines, bestBaseLine);
+            deltas.add(new CopyRangeDelta(new Range(baseStart, baseStart + bestLength), new Range(targetStart, targetStart + bestLength)));
+            t += bestLineCount;
+            literalStart = targetStart + bestLength;
+        }
+        if (literalStart < target.length) {
+            Range range = new Range(literalStart, target.length);
+            deltas.add(new InsertLiterDelta(range, range.read(target)));
+        }
+        return deltas;
+    }
+
+    /**
+     * 每行的结束位置 (不含), 包含换行符. 最后一行没有换行时也算一行
+     */
+    private static int[] lineEnds(byte[] bytes) {
+        int count = 0;
+        for (byte b : bytes) {
+            if (b == '\n') {
+                count++;
+            }
+        }
+        boolean tail = bytes.length > 0 && bytes[bytes.length - 1] != '\n';
+        int[] ends = new int[tail ? count + 1 : count];
+        int n = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                ends[n++] = i + 1;
+            }
+        }
+        if (tail) {
+            ends[n] = bytes.length;
+        }
+        return ends;
+    }
+
+    private static int lineStart(int[] lineEnds, int line) {
+        return line == 0 ? 0 : lineEnds[line - 1];
+    }
+
+    private static int[] lineHashes(byte[] bytes, int[] lineEnds) {
+        int[] hashes = new int[lineEnds.length];
+        int start = 0;
+        for (int i = 0; i < lineEnds.length; i++) {
+            // FNV-1a
+            int h = 0x811c9dc5;
+            for (int j = start; j < lineEnds[i]; j++) {
+                h ^= bytes[j] & 0xff;
+                h *= 0x01000193;
+            }
+            hashes[i] = h;
+            start = lineEnds[i];
+        }
+        return hashes;
+    }
+
+    private static boolean lineEquals(byte[] a, int[] aLines, int aLine, byte[] b, int[] bLines, int bLine) {
+        int aStart = lineStart(aLines, aLine);
+        int bStart = lineStart(bLines, bLine);
+        int len = aLines[aLine] - aStart;
+        if (len != bLines[bLine] - bStart) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (a[aStart + i] != b[bStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) {
+        StringBuilder base = new StringBuilder();
+        StringBuilder target = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            String line = "- [ ] note line " + i + ", {\"id\": " + i + ", \"tag\": \"t" + (i % 7) + "\"}\n";
+            base.append(line);
+            if (i % 20 == 0) {
+                target.append("- [x] edited ").append(i).append('\n');
+            } else {
+                target.append(line);
+            }
+        }
+        byte[] baseBytes = base.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] targetBytes = target.toString().getBytes(StandardCharsets.UTF_8);
+
+        long start = System.nanoTime();
+        List<Delta> byteDeltas = DeltaUtils.makeByteDeltas(targetBytes, baseBytes);
+        long byteNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        List<Delta> lineDeltas = makeDeltas(targetBytes, baseBytes);
+        long lineNanos = System.nanoTime() - start;
+
+        if (!Arrays.equals(DeltaUtils.applyDeltas(lineDeltas, baseBytes), targetBytes)) {
+            throw new RuntimeException("line delta apply error");
+        }
+        System.out.printf("byte: ops %d, size %d, %d ms%n", byteDeltas.size(), DeltaUtils.deltaByteSize(byteDeltas), byteNanos / 1000000);
+        System.out.printf("line: ops %d, size %d, %d ms%n", lineDeltas.size(), DeltaUtils.deltaByteSize(lineDeltas), lineNanos / 1000000);
+    }
+}
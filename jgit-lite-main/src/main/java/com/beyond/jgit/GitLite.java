@@ -1,11 +1,21 @@
 package com.beyond.jgit;
 
+import com.beyond.delta.DeltaLimits;
 import com.beyond.delta.DeltaUtils;
+import com.beyond.delta.entity.Delta;
 import com.beyond.jgit.ignore.IgnoreNode;
+import com.beyond.jgit.index.CacheTree;
+import com.beyond.jgit.index.CheckoutWriter;
+import com.beyond.jgit.index.FileStat;
+import com.beyond.jgit.index.FlattenedTreeCache;
 import com.beyond.jgit.index.Index;
 import com.beyond.jgit.index.IndexDiffResult;
 import com.beyond.jgit.index.IndexDiffer;
 import com.beyond.jgit.index.IndexManager;
+import com.beyond.jgit.index.SparseFilter;
+import com.beyond.jgit.index.TreeDiffer;
+import com.beyond.jgit.index.WorkTreeScanner;
+import com.beyond.jgit.index.WorkTreeWatcher;
 import com.beyond.jgit.log.LogItem;
 import com.beyond.jgit.log.LogManager;
 import com.beyond.jgit.object.ObjectEntity;
@@ -19,11 +29,12 @@ import com.beyond.jgit.storage.FileStorage;
 import com.beyond.jgit.storage.SardineStorage;
 import com.beyond.jgit.storage.Storage;
 import com.beyond.jgit.storage.TransportMapping;
+import com.beyond.jgit.storage.TransportMetrics;
 import com.beyond.jgit.util.*;
+import com.beyond.jgit.util.codec.Compressors;
 import com.beyond.jgit.util.commitchain.CommitChainItem;
 import com.beyond.jgit.util.commitchain.CommitChainItemLazy;
 import com.beyond.jgit.util.commitchain.CommitChainItemSingleParent;
-import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.io.FileUtils;
@@ -32,10 +43,16 @@ import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -47,7 +64,17 @@ public class GitLite {
 
     public static final String EMPTY_OBJECT_ID = "0000000000000000000000000000000000000000";
 
+    /**
+     * Range 读取 pack 时, 间隔小于这个值的两段合并成一个请求
+     */
+    private static final long RANGE_MERGE_GAP = 16 * 1024;
+    private static final long RANGE_MAX_LENGTH = 8 * 1024 * 1024;
+
+    private static final int DEFAULT_REPACK_LIMIT = 100000;
+
     private final ObjectManager objectManager;
+
+    private volatile StageTimer lastPushStages;
     private final IndexManager indexManager;
     private final LogManager localLogManager;
 
@@ -57,11 +84,21 @@ public class GitLite {
 
     private final GitLiteConfig config;
 
+    private final CheckoutWriter checkoutWriter;
+
+    private WorkTreeWatcher workTreeWatcher;
+
+    private IgnoreNode ignoreNode;
+    private long ignoreFileMtime;
+    private long ignoreFileSize;
+
     public GitLite(GitLiteConfig config) {
         this.config = config;
         this.objectManager = ObjectManagerFactory.get(config.getObjectsDir());
+        FlattenedTreeCache.forRepository(objectManager).setMaxEntries(config.getFlattenedTreeCacheMaxEntries());
         this.indexManager = new IndexManager(config.getIndexPath());
         this.localLogManager = new LogManager(PathUtils.concat(config.getLogsHeadsDir(), "master.json"));
+        this.checkoutWriter = new CheckoutWriter(config.getLocalDir(), config.getObjectsDir(), objectManager, config.getCheckoutParallelism(), config.getCheckoutMemoryBudget());
 
         this.remoteLogManagerMap = new HashMap<>();
         this.remoteStorageMap = new HashMap<>();
@@ -70,20 +107,27 @@ public class GitLite {
             remoteLogManagerMap.put(remoteConfig.getRemoteName(), new LogManager(PathUtils.concat(config.getLogsRemotesDir(), remoteConfig.getRemoteName(), "master.json")));
             if (remoteConfig.getRemoteUrl().startsWith("http://") || remoteConfig.getRemoteUrl().startsWith("https://")) {
                 if (StringUtils.isNotBlank(remoteConfig.getRemoteTmpDir())) {
-                    remoteStorageMap.put(remoteConfig.getRemoteName(),
-                            new SardineStorage(PathUtils.concat(remoteConfig.getRemoteUrl()),
-                                    remoteConfig.getRemoteUserName(),
-                                    remoteConfig.getRemotePassword(),
-                                    PathUtils.concat(remoteConfig.getRemoteTmpDir(), remoteConfig.getRemoteName(), "master.ed"),
-                                    PathUtils.concat(remoteConfig.getRemoteTmpDir(), remoteConfig.getRemoteName(), "session")));
+                    SardineStorage sardineStorage = new SardineStorage(PathUtils.concat(remoteConfig.getRemoteUrl()),
+                            remoteConfig.getRemoteUserName(),
+                            remoteConfig.getRemotePassword(),
+                            PathUtils.concat(remoteConfig.getRemoteTmpDir(), remoteConfig.getRemoteName(), "master.ed"),
+                            PathUtils.concat(remoteConfig.getRemoteTmpDir(), remoteConfig.getRemoteName(), "session"),
+                            config.getTransferParallelism(), config.getTransferMaxRetries(), config.getTransferRetryBackoffMillis(),
+                            remoteConfig.getTransportProfile());
+                    // 每次 packAndPush 都会更新 info/packs, 别人推送或者远程重建后缓存的目录不再可信
+                    sardineStorage.setDirCacheGenerationPath(PathUtils.concat(".git", "objects", "info", "packs"));
+                    remoteStorageMap.put(remoteConfig.getRemoteName(), sardineStorage);
                 } else {
                     remoteStorageMap.put(remoteConfig.getRemoteName(),
                             new SardineStorage(remoteConfig.getRemoteUrl(),
                                     remoteConfig.getRemoteUserName(),
-                                    remoteConfig.getRemotePassword()));
+                                    remoteConfig.getRemotePassword(),
+                                    null, null,
+                                    config.getTransferParallelism(), config.getTransferMaxRetries(), config.getTransferRetryBackoffMillis(),
+                                    remoteConfig.getTransportProfile()));
                 }
             } else {
-                remoteStorageMap.put(remoteConfig.getRemoteName(), new FileStorage(remoteConfig.getRemoteUrl()));
+                remoteStorageMap.put(remoteConfig.getRemoteName(), new FileStorage(remoteConfig.getRemoteUrl(), config.getTransferParallelism()));
             }
         }
     }
@@ -114,53 +158,87 @@ public class GitLite {
     }
 
     public void add(String... paths) throws IOException {
-        List<File> files = new ArrayList<>();
-        if (paths.length == 0) {
-            Collection<File> listFiles = FileUtil.listFilesAndDirsWithoutNameOf(config.getLocalDir(), ".git");
-            files.addAll(listFiles);
-        } else {
-            for (String path : paths) {
-                Collection<File> listFiles = FileUtil.listFilesAndDirsWithoutNameOf(PathUtils.concat(config.getLocalDir(), path), ".git");
-                files.addAll(listFiles);
-            }
-        }
-
         // 过滤 gitignore
+        IgnoreNode ignoreNode = null;
         if (StringUtils.isNotBlank(config.getIgnorePath()) && new File(config.getIgnorePath()).exists()) {
-            IgnoreNode ignoreNode = IgnoreNode.load(config.getIgnorePath());
-            File localDir = new File(config.getLocalDir());
-            files.removeIf(x -> IgnoreNode.isIgnored(ignoreNode, x, localDir));
+            ignoreNode = IgnoreNode.load(config.getIgnorePath());
         }
 
-        Index index = new Index();
-        for (File file : Objects.requireNonNull(files)) {
-            if (file.isFile()) {
-                ObjectEntity objectEntity = addBlobObject(file);
-                String objectId = ObjectUtils.sha1hash(objectEntity);
-                Index.Entry entry = new Index.Entry();
-                entry.setPath(PathUtils.getRelativePath(config.getLocalDir(), file.getAbsolutePath()));
-                entry.setObjectId(objectId);
-                index.getEntries().add(entry);
+        // stat 未变的文件不再读取和写 blob
+        Index cachedIndex = IndexManager.parseIndex(config.getIndexPath());
+        SparseFilter sparse = sparseFilter();
+        WorkTreeScanner scanner = new WorkTreeScanner(config.getLocalDir(), ignoreNode, sparse, config.getScanParallelism());
+        WorkTreeScanner.Hasher hasher = file -> ObjectUtils.sha1hash(addBlobObject(file));
+
+        if (paths.length == 0) {
+            Index index = new Index();
+            index.setEntries(scanner.scan(cachedIndex, hasher));
+            if (sparse != null && cachedIndex != null) {
+                // sparse 范围外的 entry 不在工作区, 保持原样
+                for (Index.Entry entry : cachedIndex.getEntries()) {
+                    if (entry.getType() == ObjectEntity.Type.tree) {
+                        if (index.entriesUnder(entry.getPath()).isEmpty()) {
+                            index.upsert(entry);
+                        }
+                    } else if (!sparse.isIncluded(entry.getPath())) {
+                        index.upsert(entry);
+                    }
+                }
             }
+            index.inheritCacheTree(cachedIndex);
+            indexManager.save(index);
+            return;
         }
-        indexManager.save(index);
+
+        // 只更新给定的路径, 其他 entry 不动
+        List<File> files = new ArrayList<>();
+        for (String path : paths) {
+            files.add(new File(PathUtils.concat(config.getLocalDir(), path)));
+        }
+        List<Index.Entry> scanned = scanner.scan(files, cachedIndex, hasher);
+        List<String> removedPaths = new ArrayList<>();
+        if (cachedIndex != null) {
+            Set<String> scannedPaths = scanned.stream().map(Index.Entry::getPath).collect(Collectors.toSet());
+            for (File file : files) {
+                String relativePath = PathUtils.getRelativePath(config.getLocalDir(), file.getAbsolutePath());
+                for (Index.Entry entry : cachedIndex.entriesUnder(relativePath)) {
+                    // 被 ignore 但仍在工作区的已跟踪文件保留原来的 entry, sparse 范围外的 entry 不在工作区也保留
+                    if (entry.getType() == ObjectEntity.Type.tree || (sparse != null && !sparse.isIncluded(entry.getPath()))) {
+                        continue;
+                    }
+                    if (!scannedPaths.contains(entry.getPath()) && !new File(config.getLocalDir(), entry.getPath()).exists()) {
+                        removedPaths.add(entry.getPath());
+                    }
+                }
+            }
+        }
+        indexManager.update(scanned, removedPaths);
     }
 
     public String commit(String message, String... parents) throws IOException {
-        return commit(IndexManager.parseIndex(config.getIndexPath()), message, parents);
+        Index index = IndexManager.parseIndex(config.getIndexPath());
+        String result = commit(index, message, parents);
+        // 新生成的 tree 记到 index 的 cache tree 里
+        if (index != null && index.getCacheTree().isChanged()) {
+            indexManager.save(index);
+        }
+        return result;
     }
 
     public String commit(Index index, String message, String... parents) throws IOException {
 
-        Index committedIndex = Index.generateFromCommit(findLocalCommitObjectId(), objectManager);
+        // sparse checkout 的 index 中有未展开的目录, 按同样的方式展开 HEAD 再比较
+        Index committedIndex = index != null && index.hasTreeEntries()
+                ? Index.generateFromCommit(findLocalCommitObjectId(), objectManager, sparseFilter())
+                : Index.generateFromCommit(findLocalCommitObjectId(), objectManager);
         IndexDiffResult committedDiff = IndexDiffer.diff(index, committedIndex);
         if (!committedDiff.isChanged()) {
             log.debug("nothing changed, no commit");
             return "nothing changed";
         }
 
-        ObjectEntity tree = addTreeFromIndex(index);
-        ObjectEntity commit = addCommitObject(tree, message, parents);
+        String treeObjectId = addTreeFromIndex(index);
+        ObjectEntity commit = addCommitObject(treeObjectId, message, parents);
         File headRefFile = getHeadRefFile();
         FileUtils.writeStringToFile(headRefFile, ObjectUtils.sha1hash(commit), StandardCharsets.UTF_8);
 
@@ -183,78 +261,84 @@ public class GitLite {
         ObjectEntity objectEntity = new ObjectEntity();
         objectEntity.setType(ObjectEntity.Type.blob);
         objectEntity.setData(blobObjectData.toBytes());
-        objectManager.write(objectEntity);
+        objectManager.write(objectEntity, config.getCompressionLevel());
         return objectEntity;
     }
 
-    private ObjectEntity addTreeFromIndex(Index index) throws IOException {
-
-        // collect nodes
-        Map<File, FileNode> nodes = new HashMap<>();
-        File rootFile = new File(config.getLocalDir());
-        FileNode root = new FileNode(rootFile);
-        nodes.put(rootFile, root);
-        for (Index.Entry entry : index.getEntries()) {
-            File file = new File(config.getLocalDir(), entry.getPath());
-            FileNode fileNode = new FileNode(file);
-            fileNode.setObjectId(entry.getObjectId());
-            walkUp(fileNode, root, nodes);
-        }
-
-        // create tree
-        for (FileNode node : nodes.values()) {
-            File parentFile = node.getFile().getParentFile();
-            FileNode parentNode = nodes.get(parentFile);
-            if (parentNode != null) {
-                parentNode.addChild(node);
-            }
-        }
-
-        return addTreeObject(root);
+    /**
+     * 按 index 中排好序的路径生成 tree, cache tree 中有记录的目录直接复用
+     */
+    private String addTreeFromIndex(Index index) throws IOException {
+        index.sortIfNeeded();
+        List<Index.Entry> entries = index.getEntries();
+        return addTreeObject(entries, 0, entries.size(), "", index.getCacheTree());
     }
 
-    private ObjectEntity addTreeObject(FileNode fileNode) throws IOException {
-        List<FileNode> children = fileNode.getChildren();
+    private String addTreeObject(List<Index.Entry> entries, int from, int to, String dir, CacheTree cacheTree) throws IOException {
+        String cachedObjectId = cacheTree.get(dir);
+        if (cachedObjectId != null) {
+            return cachedObjectId;
+        }
+        String prefix = dir.isEmpty() ? "" : dir + File.separator;
         TreeObjectData treeObjectData = new TreeObjectData();
-        List<TreeObjectData.TreeEntry> entries = treeObjectData.getEntries();
-        for (FileNode child : children) {
-            if (child.getType() == ObjectEntity.Type.tree) {
-                addTreeObject(child);
-            }
+        List<TreeObjectData.TreeEntry> treeEntries = treeObjectData.getEntries();
+        int i = from;
+        while (i < to) {
+            String path = entries.get(i).getPath();
+            int separatorIndex = path.indexOf(File.separatorChar, prefix.length());
             TreeObjectData.TreeEntry treeEntry = new TreeObjectData.TreeEntry();
-            treeEntry.setType(child.getType());
-            treeEntry.setName(child.getFileName());
-            treeEntry.setMode(ObjectUtils.getModeByType(child.getType()));
-            treeEntry.setObjectId(child.getObjectId());
-            entries.add(treeEntry);
+            if (separatorIndex < 0 && entries.get(i).getType() == ObjectEntity.Type.tree) {
+                // sparse checkout 未展开的目录
+                treeEntry.setType(ObjectEntity.Type.tree);
+                treeEntry.setName(path.substring(prefix.length()));
+                treeEntry.setObjectId(entries.get(i).getObjectId());
+                i++;
+            } else if (separatorIndex < 0) {
+                treeEntry.setType(ObjectEntity.Type.blob);
+                treeEntry.setName(path.substring(prefix.length()));
+                treeEntry.setObjectId(entries.get(i).getObjectId());
+                i++;
+            } else {
+                String childDir = path.substring(0, separatorIndex);
+                int childEnd = prefixEnd(entries, i, to, childDir + File.separator);
+                treeEntry.setType(ObjectEntity.Type.tree);
+                treeEntry.setName(childDir.substring(prefix.length()));
+                treeEntry.setObjectId(addTreeObject(entries, i, childEnd, childDir, cacheTree));
+                i = childEnd;
+            }
+            treeEntry.setMode(ObjectUtils.getModeByType(treeEntry.getType()));
+            treeEntries.add(treeEntry);
         }
         ObjectEntity objectEntity = new ObjectEntity();
         objectEntity.setType(ObjectEntity.Type.tree);
-        entries.sort(Comparator.comparing(TreeObjectData.TreeEntry::getName));
+        treeEntries.sort(Comparator.comparing(TreeObjectData.TreeEntry::getName));
         objectEntity.setData(treeObjectData.toBytes());
-        String objectId = objectManager.write(objectEntity);
-        fileNode.setObjectId(objectId);
-        log.debug(fileNode.getFileName() + ":{}", objectId);
-        return objectEntity;
+        String objectId = objectManager.write(objectEntity, config.getCompressionLevel());
+        cacheTree.put(dir, objectId);
+        log.debug(dir + ":{}", objectId);
+        return objectId;
     }
 
-    private void walkUp(FileNode fileNode, FileNode rootNode, Map<File, FileNode> nodes) {
-        File file = fileNode.getFile();
-        File root = rootNode.getFile();
-        if (Objects.equals(file, root)) {
-            return;
-        }
-        if (nodes.containsKey(file)) {
-            return;
+    /**
+     * entries[from] 以 prefix 开头, 排序后同前缀的 entry 连续, 二分找到第一个不以 prefix 开头的位置
+     */
+    private static int prefixEnd(List<Index.Entry> entries, int from, int to, String prefix) {
+        int low = from + 1;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries.get(mid).getPath().startsWith(prefix)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
-        File parentFile = file.getParentFile();
-        nodes.put(file, fileNode);
-        walkUp(new FileNode(parentFile), rootNode, nodes);
+        return low;
     }
 
-    private ObjectEntity addCommitObject(ObjectEntity tree, String message, String... parents) throws IOException {
+    private ObjectEntity addCommitObject(String treeObjectId, String message, String... parents) throws IOException {
         CommitObjectData commitObjectData = new CommitObjectData();
-        commitObjectData.setTree(ObjectUtils.sha1hash(tree));
+        commitObjectData.setTree(treeObjectId);
         commitObjectData.setCommitTime(System.currentTimeMillis());
         CommitObjectData.User user = new CommitObjectData.User();
         user.setName(config.getCommitterName());
@@ -278,7 +362,7 @@ public class GitLite {
         commitObjectEntity.setType(ObjectEntity.Type.commit);
         commitObjectEntity.setData(commitObjectData.toBytes());
 
-        String commitObjectId = objectManager.write(commitObjectEntity);
+        String commitObjectId = objectManager.write(commitObjectEntity, config.getCompressionLevel());
         log.debug("commitObjectId: {}", commitObjectId);
 
         return commitObjectEntity;
@@ -316,12 +400,7 @@ public class GitLite {
         // 根据 remote head 判断需要下载那些objects
         String webRemoteLatestCommitObjectId = findRemoteCommitObjectId(remoteName);
         CommitChainItem chainHead = getRemoteCommitChainHead(webRemoteLatestCommitObjectId, null, remoteStorage);
-        chainHead.dfsWalk(commitChainItem -> {
-            // olderCommitObjectId的parents是空的， 这里不需要再重新下载一次olderCommitObjectId
-            if (CollectionUtils.isNotEmpty(commitChainItem.getParents())) {
-                downloadByObjectIdRecursive(commitChainItem.getCommitObjectId(), remoteStorage);
-            }
-        });
+        downloadCommitContents(chainHead, remoteStorage);
 
         ObjectEntity commitObjectEntity = objectManager.read(webRemoteLatestCommitObjectId);
         CommitObjectData commitObjectData = CommitObjectData.parseFrom(commitObjectEntity.getData());
@@ -413,12 +492,7 @@ public class GitLite {
         }
         // 去remoteLog, remoteLog只在本地存,不上传. 改用commitObject中的parent获取提交链
         CommitChainItem chainHead = getRemoteCommitChainHead(remoteLockCommitObjectId, remoteCommitObjectId, remoteStorage);
-        chainHead.dfsWalk(commitChainItem -> {
-            // olderCommitObjectId的parents是空的， 这里不需要再重新下载一次olderCommitObjectId
-            if (CollectionUtils.isNotEmpty(commitChainItem.getParents())) {
-                downloadByObjectIdRecursive(commitChainItem.getCommitObjectId(), remoteStorage);
-            }
-        });
+        downloadCommitContents(chainHead, remoteStorage);
 
 
         // update head
@@ -433,18 +507,61 @@ public class GitLite {
         Storage remoteStorage = remoteStorageMap.get(remoteName);
         String remotePackInfoPath = PathUtils.concat(".git","objects", "info", "packs");
         String packInfoTmpPath = PathUtils.concat(config.getObjectInfoDir(), "packs.tmp");
-        if (remoteStorage.exists(remotePackInfoPath)) {
-            remoteStorage.download(remotePackInfoPath, packInfoTmpPath);
+        if (!remoteStorage.exists(remotePackInfoPath)) {
+            // 远程还没有 pack, 只有 loose 对象
+            return;
         }
+        remoteStorage.download(remotePackInfoPath, packInfoTmpPath);
         File packInfoFileTmp = new File(packInfoTmpPath);
         String packInfoStr = FileUtils.readFileToString(packInfoFileTmp, StandardCharsets.UTF_8);
         PackInfo packInfo = JsonUtils.readValue(packInfoStr, PackInfo.class);
         if (packInfo != null) {
+            List<TransportMapping> mappings = new ArrayList<>();
+            List<PackReader.PackPair> localPackPairs = new ArrayList<>();
+            List<PackInfo.Item> largeItems = new ArrayList<>();
             for (PackInfo.Item item : packInfo.getItems()) {
                 String remotePackPath = PathUtils.concat(".git","objects", "pack", item.getName());
                 String localPackPath = PathUtils.concat(config.getObjectPackDir(), item.getName());
-                remoteStorage.download(remotePackPath,localPackPath);
-                remoteStorage.download(PackUtils.getIndexPath(remotePackPath), PackUtils.getIndexPath(localPackPath));
+                PackReader.PackPair packPair = PackUtils.getPackPair(config.getObjectsDir(), item.getName());
+                if (packPair.getPackDataFile().exists() && packPair.getPackIndexFile().exists()) {
+                    // pack 以内容的 checksum 命名, 同名即相同
+                    log.debug("pack {} exists, no download", item.getName());
+                    localPackPairs.add(packPair);
+                    continue;
+                }
+                if (remoteStorage.length(remotePackPath) >= config.getPackRangeFetchMinSize()) {
+                    largeItems.add(item);
+                    continue;
+                }
+                mappings.add(TransportMapping.of(localPackPath, remotePackPath));
+                mappings.add(TransportMapping.of(PackUtils.getIndexPath(localPackPath), PackUtils.getIndexPath(remotePackPath)));
+            }
+
+            // 先下载整个的 pack, range 读取的对象的 delta base 可能在这些 pack 中
+            remoteStorage.downloadBatch(mappings);
+            addPackPairs(mappings, localPackPairs);
+
+            List<RangeFetch> rangeFetches = new ArrayList<>();
+            List<TransportMapping> fullMappings = new ArrayList<>();
+            for (PackInfo.Item item : largeItems) {
+                RangeFetch rangeFetch = planRangeFetch(item, localPackPairs, remoteStorage);
+                if (rangeFetch != null) {
+                    rangeFetches.add(rangeFetch);
+                } else {
+                    fullMappings.add(TransportMapping.of(PathUtils.concat(config.getObjectPackDir(), item.getName()),
+                            PathUtils.concat(".git", "objects", "pack", item.getName())));
+                }
+            }
+            remoteStorage.downloadBatch(fullMappings);
+            addPackPairs(fullMappings, localPackPairs);
+
+            if (!rangeFetches.isEmpty()) {
+                fetchRanges(rangeFetches, localPackPairs, remoteStorage);
+                // 只读取了部分对象的 pack 本地没有文件, 对象已经是 loose 的
+                for (RangeFetch rangeFetch : rangeFetches) {
+                    packInfo.getItems().remove(rangeFetch.item);
+                }
+                FileUtils.writeStringToFile(packInfoFileTmp, JsonUtils.writeValueAsString(packInfo), StandardCharsets.UTF_8);
             }
         }
 
@@ -452,6 +569,160 @@ public class GitLite {
         FileUtil.move(packInfoFileTmp, packInfoFile);
     }
 
+    private void addPackPairs(List<TransportMapping> mappings, List<PackReader.PackPair> packPairs) {
+        for (TransportMapping mapping : mappings) {
+            String name = new File(mapping.getLocalPath()).getName();
+            if (name.endsWith(".pack")) {
+                packPairs.add(PackUtils.getPackPair(config.getObjectsDir(), name));
+            }
+        }
+    }
+
+    /**
+     * 一个大 pack 中需要用 Range 读取的部分
+     */
+    private static class RangeFetch {
+        private PackInfo.Item item;
+        private String remotePackPath;
+        /**
+         * 按 offset 排序
+         */
+        private final List<PackIndex.Item> missingItems = new ArrayList<>();
+        /**
+         * [start, end), 相邻的对象合并成一个请求
+         */
+        private final List<long[]> ranges = new ArrayList<>();
+    }
+
+    /**
+     * 大 pack 先只下载 idx, 本地缺少的对象不多时用 Range 读取这些对象.
+     * 只在本地旧 pack 中的对象直接写成 loose, 这些 pack 之后不在 info/packs 中.
+     *
+     * @return null 表示缺少的太多, 应该下载整个 pack. 此时 idx 已经下载好
+     */
+    private RangeFetch planRangeFetch(PackInfo.Item packItem, List<PackReader.PackPair> localPackPairs, Storage remoteStorage) throws IOException {
+        String packName = packItem.getName();
+        String remotePackPath = PathUtils.concat(".git", "objects", "pack", packName);
+        PackReader.PackPair packPair = PackUtils.getPackPair(config.getObjectsDir(), packName);
+        if (!packPair.getPackIndexFile().exists()) {
+            remoteStorage.download(PackUtils.getIndexPath(remotePackPath), packPair.getPackIndexFile().getAbsolutePath());
+        }
+        long packSize = remoteStorage.length(remotePackPath);
+
+        Set<String> localPackedObjectIds = new HashSet<>(PackReader.readAllObjectIds(localPackPairs));
+        List<PackReader.PackPair> oldPackPairs = new ArrayList<>();
+        PackInfo oldPackInfo = PackUtils.readPackInfo(config.getObjectsDir());
+        if (oldPackInfo != null) {
+            for (PackInfo.Item item : oldPackInfo.getItems()) {
+                PackReader.PackPair oldPackPair = PackUtils.getPackPair(config.getObjectsDir(), item.getName());
+                if (!localPackPairs.contains(oldPackPair) && oldPackPair.getPackDataFile().exists() && oldPackPair.getPackIndexFile().exists()) {
+                    oldPackPairs.add(oldPackPair);
+                }
+            }
+        }
+        Set<String> oldPackedObjectIds = new HashSet<>(PackReader.readAllObjectIds(oldPackPairs));
+        List<PackIndex.Item> items = PackIndexFormatter.parse(packPair.getPackIndexBytes());
+        items.sort(Comparator.comparingInt(PackIndex.Item::getOffset));
+
+        // 每个缺少的对象对应 [本对象 offset, 下一个对象 offset), 最后一个到 trailer 为止
+        RangeFetch rangeFetch = new RangeFetch();
+        rangeFetch.item = packItem;
+        rangeFetch.remotePackPath = remotePackPath;
+        List<String> oldPackedItems = new ArrayList<>();
+        long neededBytes = 0;
+        for (int i = 0; i < items.size(); i++) {
+            PackIndex.Item item = items.get(i);
+            if (localPackedObjectIds.contains(item.getObjectId()) || ObjectUtils.getObjectFile(config.getObjectsDir(), item.getObjectId()).exists()) {
+                continue;
+            }
+            if (oldPackedObjectIds.contains(item.getObjectId())) {
+                oldPackedItems.add(item.getObjectId());
+                continue;
+            }
+            rangeFetch.missingItems.add(item);
+            long start = item.getOffset();
+            long end = i + 1 < items.size() ? items.get(i + 1).getOffset() : packSize - 20;
+            List<long[]> ranges = rangeFetch.ranges;
+            long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && start - last[1] <= RANGE_MERGE_GAP && end - last[0] <= RANGE_MAX_LENGTH) {
+                neededBytes += end - last[1];
+                last[1] = end;
+            } else {
+                neededBytes += end - start;
+                ranges.add(new long[]{start, end});
+            }
+        }
+        if (packSize <= 0 || neededBytes > packSize / 2) {
+            log.info("pack {} needs {}/{} bytes, download whole pack", packName, neededBytes, packSize);
+            return null;
+        }
+        log.info("pack {} needs {} objects, {}/{} bytes in {} range requests", packName, rangeFetch.missingItems.size(), neededBytes, packSize, rangeFetch.ranges.size());
+
+        // delta 的 base 可能在保留的本地 pack 中
+        List<PackReader.PackPair> readablePackPairs = new ArrayList<>(oldPackPairs);
+        readablePackPairs.addAll(localPackPairs);
+        for (String objectId : oldPackedItems) {
+            objectManager.write(PackReader.readObject(objectId, readablePackPairs), config.getCompressionLevel());
+        }
+        return rangeFetch;
+    }
+
+    /**
+     * 先读取所有 pack 的 range, 再统一解析. ref delta 的 base 可能在另一个 range 读取的 pack 中
+     */
+    private void fetchRanges(List<RangeFetch> rangeFetches, List<PackReader.PackPair> localPackPairs, Storage remoteStorage) throws IOException {
+        Map<String, Block> objectId2Block = new HashMap<>();
+        for (RangeFetch rangeFetch : rangeFetches) {
+            PackFile.Header header = PackFile.Header.parse(remoteStorage.readRange(rangeFetch.remotePackPath, 0, 12));
+            int itemIndex = 0;
+            for (long[] range : rangeFetch.ranges) {
+                byte[] bytes = remoteStorage.readRange(rangeFetch.remotePackPath, range[0], (int) (range[1] - range[0]));
+                List<PackIndex.Item> missingItems = rangeFetch.missingItems;
+                for (; itemIndex < missingItems.size() && missingItems.get(itemIndex).getOffset() < range[1]; itemIndex++) {
+                    PackIndex.Item item = missingItems.get(itemIndex);
+                    objectId2Block.put(item.getObjectId(), PackFileFormatter.parseNextBlock(bytes, (int) (item.getOffset() - range[0]), header));
+                }
+            }
+        }
+
+        Set<String> localPackedObjectIds = new HashSet<>(PackReader.readAllObjectIds(localPackPairs));
+        Map<String, ObjectEntity> resolved = new HashMap<>();
+        for (RangeFetch rangeFetch : rangeFetches) {
+            for (PackIndex.Item item : rangeFetch.missingItems) {
+                ObjectEntity objectEntity = resolveBlock(item.getObjectId(), objectId2Block, resolved, localPackPairs, localPackedObjectIds);
+                String objectId = objectManager.write(objectEntity, config.getCompressionLevel());
+                if (!objectId.equals(item.getObjectId())) {
+                    throw new RuntimeException("object " + item.getObjectId() + " read by range mismatch: " + objectId);
+                }
+            }
+        }
+    }
+
+    private ObjectEntity resolveBlock(String objectId, Map<String, Block> objectId2Block, Map<String, ObjectEntity> resolved,
+                                      List<PackReader.PackPair> localPackPairs, Set<String> localPackedObjectIds) throws IOException {
+        ObjectEntity cached = resolved.get(objectId);
+        if (cached != null) {
+            return cached;
+        }
+        Block block = objectId2Block.get(objectId);
+        if (block == null) {
+            // delta 的 base 本地已有
+            return localPackedObjectIds.contains(objectId) ? PackReader.readObject(objectId, localPackPairs) : objectManager.read(objectId);
+        }
+        ObjectEntity result = new ObjectEntity();
+        if (block instanceof BaseBlock) {
+            result.setType(((BaseBlock) block).getType());
+            result.setData(((BaseBlock) block).getContent());
+        } else if (block instanceof RefDeltaBlock) {
+            ObjectEntity base = resolveBlock(((RefDeltaBlock) block).getRef(), objectId2Block, resolved, localPackPairs, localPackedObjectIds);
+            result.setType(base.getType());
+            result.setData(DeltaUtils.applyDeltas(((RefDeltaBlock) block).getDeltas(), base.getData()));
+        } else {
+            throw new RuntimeException("OfsDeltaBlock is not supported yet");
+        }
+        resolved.put(objectId, result);
+        return result;
+    }
 
     // 包新不包旧
     private CommitChainItem getRemoteCommitChainHead(String newerCommitObjectId, String olderCommitObjectId, Storage remoteStorage) throws IOException {
@@ -459,67 +730,200 @@ public class GitLite {
         return getCommitChainHead(newerCommitObjectId, olderCommitObjectId, objectManager);
     }
 
+    /**
+     * 按层下载 commit: 每层本地没有的 commit 一起下载, 再从中解析出下一层的 parent
+     */
     private void downloadCommitObjectsBetween(String newerCommitObjectId, String olderCommitObjectId, Storage remoteStorage) throws IOException {
-        if (Objects.equals(newerCommitObjectId, olderCommitObjectId)) {
-            return;
+        Set<String> visited = new HashSet<>();
+        List<String> level = Collections.singletonList(newerCommitObjectId);
+        while (!level.isEmpty()) {
+            List<String> commitObjectIds = new ArrayList<>();
+            for (String commitObjectId : level) {
+                if (Objects.equals(commitObjectId, olderCommitObjectId) || Objects.equals(commitObjectId, EMPTY_OBJECT_ID)) {
+                    continue;
+                }
+                if (visited.add(commitObjectId)) {
+                    commitObjectIds.add(commitObjectId);
+                }
+            }
+            downloadMissingObjects(commitObjectIds, remoteStorage);
+
+            List<String> nextLevel = new ArrayList<>();
+            for (String commitObjectId : commitObjectIds) {
+                //  merge时会有多个
+                nextLevel.addAll(CommitObjectData.parseFrom(objectManager.read(commitObjectId).getData()).getParents());
+            }
+            level = nextLevel;
         }
-        if (Objects.equals(newerCommitObjectId, EMPTY_OBJECT_ID)) {
-            return;
+    }
+
+    /**
+     * 下载提交链上 commit 引用的 tree 和 blob. 最老的 commit (olderCommitObjectId) 没有 parents, 本地已经有了, 不用下载
+     */
+    private void downloadCommitContents(CommitChainItem chainHead, Storage remoteStorage) throws IOException {
+        List<String> commitObjectIds = new ArrayList<>();
+        chainHead.dfsWalk(commitChainItem -> {
+            if (CollectionUtils.isNotEmpty(commitChainItem.getParents())) {
+                commitObjectIds.add(commitChainItem.getCommitObjectId());
+            }
+        });
+        downloadObjectsByLevel(commitObjectIds, remoteStorage);
+    }
+
+    /**
+     * 从 commit 开始按层遍历对象图: 每层本地没有的对象一起并发下载, 再解析其中的 tree 得到下一层.
+     * 请求的轮数和 tree 的深度相关, 与对象个数无关. 多个 commit 共享的子树只处理一次
+     */
+    private void downloadObjectsByLevel(Collection<String> commitObjectIds, Storage remoteStorage) throws IOException {
+        Set<String> visited = new HashSet<>(commitObjectIds);
+        List<String> level = new ArrayList<>(commitObjectIds);
+        // blob 不需要解析, 和下一层的 tree 一起下载
+        List<String> blobObjectIds = new ArrayList<>();
+        int depth = 0;
+        long startTime = System.currentTimeMillis();
+        while (!level.isEmpty() || !blobObjectIds.isEmpty()) {
+            List<String> toDownload = new ArrayList<>(level);
+            toDownload.addAll(blobObjectIds);
+            blobObjectIds.clear();
+            downloadMissingObjects(toDownload, remoteStorage);
+
+            List<String> nextLevel = new ArrayList<>();
+            for (String objectId : level) {
+                ObjectEntity objectEntity = objectManager.read(objectId);
+                switch (objectEntity.getType()) {
+                    case commit:
+                        String tree = CommitObjectData.parseFrom(objectEntity.getData()).getTree();
+                        if (visited.add(tree)) {
+                            nextLevel.add(tree);
+                        }
+                        break;
+                    case tree:
+                        for (TreeObjectData.TreeEntry entry : TreeObjectData.parseFrom(objectEntity.getData()).getEntries()) {
+                            if (!visited.add(entry.getObjectId())) {
+                                continue;
+                            }
+                            if (entry.getType() == ObjectEntity.Type.tree) {
+                                nextLevel.add(entry.getObjectId());
+                            } else {
+                                blobObjectIds.add(entry.getObjectId());
+                            }
+                        }
+                        break;
+                    case blob:
+                        // do nothing
+                        break;
+                    default:
+                        throw new RuntimeException("type error");
+                }
+            }
+            level = nextLevel;
+            depth++;
         }
+        log.debug("objects of {} commits downloaded, {} objects visited, depth {}, cost {}ms", commitObjectIds.size(), visited.size(), depth, System.currentTimeMillis() - startTime);
+    }
 
-        if (!objectManager.exists(newerCommitObjectId)) {
-            String objectPath = ObjectUtils.getObjectPath(config.getObjectsDir(), newerCommitObjectId);
-            File objectFile = new File(objectPath);
-            FileUtils.forceMkdirParent(objectFile);
-            remoteStorage.download(PathUtils.concat(".git","objects", ObjectUtils.path(newerCommitObjectId)), objectPath);
+    private void downloadMissingObjects(Collection<String> objectIds, Storage remoteStorage) throws IOException {
+        List<TransportMapping> mappings = new ArrayList<>();
+        for (String objectId : objectIds) {
+            if (!objectManager.exists(objectId)) {
+                mappings.add(TransportMapping.of(ObjectUtils.getObjectPath(config.getObjectsDir(), objectId),
+                        PathUtils.concat(".git", "objects", ObjectUtils.path(objectId))));
+            }
         }
-        ObjectEntity commitObjectEntity = objectManager.read(newerCommitObjectId);
-        List<String> parents = CommitObjectData.parseFrom(commitObjectEntity.getData()).getParents();
-        //  merge时会有多个
-        for (String parent : parents) {
-            downloadCommitObjectsBetween(parent, olderCommitObjectId, remoteStorage);
+        remoteStorage.downloadBatch(mappings);
+    }
+
+    public void checkout() throws IOException {
+        checkout(findLocalCommitObjectId());
+    }
+
+    /**
+     * 工作区相对于当前 commit 的变化, 已忽略的文件不算
+     */
+    public IndexDiffResult status() throws IOException {
+        Index localIndex = scanWorkTree();
+        SparseFilter sparse = sparseFilter();
+        Index committedIndex = Index.generateFromCommit(findLocalCommitObjectId(), objectManager, sparse);
+        return IndexDiffer.diff(localIndex, workTreeView(committedIndex, sparse));
+    }
+
+    private SparseFilter sparseFilter() {
+        return SparseFilter.of(config.getSparsePatterns());
+    }
+
+    /**
+     * index 中应该出现在工作区的部分, 去掉 sparse 范围外的 entry
+     */
+    private static Index workTreeView(Index index, SparseFilter sparse) {
+        if (index == null || sparse == null) {
+            return index;
         }
+        Index result = new Index();
+        for (Index.Entry entry : index.getEntries()) {
+            if (entry.getType() != ObjectEntity.Type.tree && sparse.isIncluded(entry.getPath())) {
+                result.getEntries().add(entry);
+            }
+        }
+        return result;
     }
 
-    private void downloadByObjectIdRecursive(String objectId, Storage remoteStorage) throws IOException {
-        if (!objectManager.exists(objectId)) {
-            String objectPath = ObjectUtils.getObjectPath(config.getObjectsDir(), objectId);
-            File objectFile = new File(objectPath);
-            FileUtils.forceMkdirParent(objectFile);
-            remoteStorage.download(PathUtils.concat(".git","objects", ObjectUtils.path(objectId)), objectPath);
+    /**
+     * 开启后工作区的扫描只处理变化过的路径
+     */
+    public synchronized void startWatching() throws IOException {
+        if (workTreeWatcher == null) {
+            workTreeWatcher = new WorkTreeWatcher(config.getLocalDir(), config.getScanParallelism());
         }
-        ObjectEntity objectEntity = objectManager.read(objectId);
-        switch (objectEntity.getType()) {
-            case commit:
-                CommitObjectData commitObjectData = CommitObjectData.parseFrom(objectEntity.getData());
-                String tree = commitObjectData.getTree();
-                downloadByObjectIdRecursive(tree, remoteStorage);
-                break;
-            case tree:
-                TreeObjectData treeObjectData = TreeObjectData.parseFrom(objectEntity.getData());
-                List<TreeObjectData.TreeEntry> entries = treeObjectData.getEntries();
-                for (TreeObjectData.TreeEntry entry : entries) {
-                    downloadByObjectIdRecursive(entry.getObjectId(), remoteStorage);
-                }
-                break;
-            case blob:
-                // do nothing
-                break;
-            default:
-                throw new RuntimeException("type error");
+    }
+
+    public synchronized void stopWatching() throws IOException {
+        if (workTreeWatcher != null) {
+            workTreeWatcher.close();
+            workTreeWatcher = null;
         }
+    }
 
+    /**
+     * 工作区中 sparse 范围内且没有被忽略的文件. 忽略的文件扫描时就跳过, 不会每次都 hash
+     */
+    private Index scanWorkTree() throws IOException {
+        Index cachedIndex = IndexManager.parseIndex(config.getIndexPath());
+        SparseFilter sparse = sparseFilter();
+        IgnoreNode ignoreNode = loadIgnoreNode();
+        if (config.isWatchWorkTree()) {
+            startWatching();
+        }
+        WorkTreeWatcher watcher = workTreeWatcher;
+        if (watcher != null) {
+            return workTreeView(watcher.snapshot(cachedIndex, ignoreNode), sparse);
+        }
+        return Index.generateFromLocalDir(config.getLocalDir(), cachedIndex, ignoreNode, sparse, config.getScanParallelism());
     }
 
-    public void checkout() throws IOException {
-        checkout(findLocalCommitObjectId());
+    /**
+     * ignore 文件没变时返回上次解析的结果, watcher 据此判断规则是否变了
+     */
+    private synchronized IgnoreNode loadIgnoreNode() throws IOException {
+        if (StringUtils.isBlank(config.getIgnorePath()) || !new File(config.getIgnorePath()).exists()) {
+            ignoreNode = null;
+            return null;
+        }
+        File ignoreFile = new File(config.getIgnorePath());
+        if (ignoreNode == null || ignoreFile.lastModified() != ignoreFileMtime || ignoreFile.length() != ignoreFileSize) {
+            ignoreFileMtime = ignoreFile.lastModified();
+            ignoreFileSize = ignoreFile.length();
+            ignoreNode = IgnoreNode.load(config.getIgnorePath());
+        }
+        return ignoreNode;
     }
 
     public void checkout(String commitObjectId) throws IOException {
-        Index targetIndex = Index.generateFromCommit(commitObjectId, objectManager);
-        Index localIndex = Index.generateFromLocalDir(config.getLocalDir());
+        // sparse 范围外的目录不展开, 文件也不写到工作区
+        SparseFilter sparse = sparseFilter();
+        Index targetIndex = Index.generateFromCommit(commitObjectId, objectManager, sparse);
+        Index localIndex = scanWorkTree();
 
-        IndexDiffResult diff = IndexDiffer.diff(targetIndex, localIndex);
+        IndexDiffResult diff = IndexDiffer.diff(workTreeView(targetIndex, sparse), localIndex);
         Set<Index.Entry> removed = diff.getRemoved();
         for (Index.Entry entry : removed) {
             FileUtils.deleteQuietly(new File(PathUtils.concat(config.getLocalDir(), entry.getPath())));
@@ -528,35 +932,43 @@ public class GitLite {
         List<Index.Entry> changedEntries = new ArrayList<>();
         changedEntries.addAll(diff.getAdded());
         changedEntries.addAll(diff.getUpdated());
-        for (Index.Entry entry : changedEntries) {
-            String absPath = PathUtils.concat(config.getLocalDir(), entry.getPath());
-            ObjectEntity objectEntity = objectManager.read(entry.getObjectId());
-            if (objectEntity.getType() == ObjectEntity.Type.blob) {
-                BlobObjectData blobObjectData = BlobObjectData.parseFrom(objectEntity.getData());
-                FileUtils.writeByteArrayToFile(new File(absPath), blobObjectData.getData());
+        Map<String, FileStat> writtenStats = checkoutWriter.write(changedEntries);
+
+        // 带上 stat, 下次可以不用重新 hash
+        if (targetIndex == null) {
+            return;
+        }
+        Index index = new Index();
+        for (Index.Entry entry : targetIndex.getEntries()) {
+            Index.Entry copy = entry.copy();
+            FileStat stat = writtenStats.get(entry.getPath());
+            Index.Entry local = localIndex.get(entry.getPath());
+            if (stat != null) {
+                copy.fillStat(stat);
+            } else if (local != null && Objects.equals(local.getObjectId(), entry.getObjectId())) {
+                copy.setMtime(local.getMtime());
+                copy.setCtime(local.getCtime());
+                copy.setSize(local.getSize());
+                copy.setInode(local.getInode());
             }
+            index.getEntries().add(copy);
         }
-
-        Index index = Index.generateFromCommit(commitObjectId, objectManager);
         indexManager.save(index);
     }
 
 
     public void checkout(String commitObjectId, List<String> targetPaths) throws IOException {
-        Index targetIndex = Index.generateFromCommit(commitObjectId, objectManager);
+        SparseFilter sparse = sparseFilter();
+        Index targetIndex = workTreeView(Index.generateFromCommit(commitObjectId, objectManager, sparse), sparse);
+        // 和 PathUtils.equals 一样按 Path 比较
+        Set<Path> targetPathSet = targetPaths.stream().map(Paths::get).collect(Collectors.toSet());
+        List<Index.Entry> entries = new ArrayList<>();
         for (Index.Entry entry : targetIndex.getEntries()) {
-            String absPath = PathUtils.concat(config.getLocalDir(), entry.getPath());
-            for (String targetPath : targetPaths) {
-                if (PathUtils.equals(entry.getPath(), targetPath)) {
-                    ObjectEntity objectEntity = objectManager.read(entry.getObjectId());
-                    if (objectEntity.getType() == ObjectEntity.Type.blob) {
-                        BlobObjectData blobObjectData = BlobObjectData.parseFrom(objectEntity.getData());
-                        FileUtils.writeByteArrayToFile(new File(absPath), blobObjectData.getData());
-                    }
-                }
+            if (targetPathSet.contains(Paths.get(entry.getPath()))) {
+                entries.add(entry);
             }
-
         }
+        checkoutWriter.write(entries);
     }
 
     /**
@@ -653,14 +1065,12 @@ public class GitLite {
             log.warn("no intersectionCommitObjectId, cover.");
         }
 
-        Index intersectionIndex = Index.generateFromCommit(intersectionCommitObjectId, objectManager);
-
-        Index committedHeadIndex = Index.generateFromCommit(localCommitObjectId, objectManager);
-        IndexDiffResult committedDiff = IndexDiffer.diff(committedHeadIndex, intersectionIndex);
+        // 三个 commit 的 tree 同步遍历, 用同一个 sparse, 范围外的目录以 tree entry 整体比较
+        SparseFilter sparse = sparseFilter();
+        IndexDiffResult[] diffs = TreeDiffer.diff3(localCommitObjectId, remoteCommitObjectId, intersectionCommitObjectId, objectManager, sparse);
+        IndexDiffResult committedDiff = diffs[0];
         log.debug("committedDiff: {}", JsonUtils.writeValueAsString(committedDiff));
-
-        Index remoteHeadIndex = Index.generateFromCommit(remoteCommitObjectId, objectManager);
-        IndexDiffResult remoteDiff = IndexDiffer.diff(remoteHeadIndex, intersectionIndex);
+        IndexDiffResult remoteDiff = diffs[1];
         log.debug("remoteDiff: {}", JsonUtils.writeValueAsString(remoteDiff));
 
         // - 没变化直接用变化的commit - 两边都有变化, 更新index, 根据 index 新建commit
@@ -691,12 +1101,18 @@ public class GitLite {
         Map<String, String> committedChangedPath2ObjectIdMap = committedChanged.stream().collect(Collectors.toMap(Index.Entry::getPath, Index.Entry::getObjectId));
         Map<String, String> remoteChangedPath2ObjectIdMap = remoteChanged.stream().collect(Collectors.toMap(Index.Entry::getPath, Index.Entry::getObjectId));
 
-        Map<String, Index.Entry> remoteIndexPath2Entry = remoteHeadIndex == null ? Collections.emptyMap() : remoteHeadIndex.getEntries().stream().collect(Collectors.toMap(Index.Entry::getPath, x -> x));
+        // 两边都有变化时才需要展开本地 commit 作为合并结果的基础
+        Index committedHeadIndex = Index.generateFromCommit(localCommitObjectId, objectManager, sparse);
+
+        // 冲突的 path 都在 remoteChanged 中, 远程删除的 path 取不到 entry
+        Map<String, Index.Entry> remoteIndexPath2Entry = Stream.concat(remoteDiff.getAdded().stream(), remoteDiff.getUpdated().stream())
+                .collect(Collectors.toMap(Index.Entry::getPath, x -> x));
 
         Collection<String> intersection = CollectionUtils.intersection(committedChangedPath2ObjectIdMap.keySet(), remoteChangedPath2ObjectIdMap.keySet());
         intersection.removeIf(x -> Objects.equals(committedChangedPath2ObjectIdMap.get(x), remoteChangedPath2ObjectIdMap.get(x)));
 
         // todo : test
+        Index intersectionIndex = CollectionUtils.isEmpty(intersection) ? null : Index.generateFromCommit(intersectionCommitObjectId, objectManager, sparse);
         if (intersectionIndex != null && CollectionUtils.isNotEmpty(intersection)) {
             log.debug("conflicted paths:{}", JsonUtils.writeValueAsString(intersection));
             // merge conflicted
@@ -720,10 +1136,10 @@ public class GitLite {
                 Set<String> remoteRemovePath = remoteDiff.getRemoved().stream().map(Index.Entry::getPath).collect(Collectors.toSet());
                 if (localRemovedPath.contains(pathInIndex)) {
                     if (isLocalNewer) {
-                        committedHeadIndex.getEntries().removeIf(x -> Objects.equals(x.getPath(), pathInIndex));
+                        committedHeadIndex.remove(pathInIndex);
                     } else {
                         if (remoteRemovePath.contains(pathInIndex)) {
-                            committedHeadIndex.getEntries().removeIf(x -> Objects.equals(x.getPath(), pathInIndex));
+                            committedHeadIndex.remove(pathInIndex);
                         } else {
                             committedHeadIndex.upsert(Collections.singletonList(remoteIndexPath2Entry.get(pathInIndex)));
                             remotePathsToCheckout.add(pathInIndex);
@@ -734,7 +1150,16 @@ public class GitLite {
 
                 if (remoteRemovePath.contains(pathInIndex)) {
                     if (!isLocalNewer) {
-                        committedHeadIndex.getEntries().removeIf(x -> Objects.equals(x.getPath(), pathInIndex));
+                        committedHeadIndex.remove(pathInIndex);
+                    }
+                    continue;
+                }
+
+                // sparse 范围外的目录不展开合并, 整个目录取较新的一边
+                Index.Entry remoteEntry = remoteIndexPath2Entry.get(pathInIndex);
+                if (remoteEntry != null && remoteEntry.getType() == ObjectEntity.Type.tree) {
+                    if (!isLocalNewer) {
+                        committedHeadIndex.upsert(Collections.singletonList(remoteEntry));
                     }
                     continue;
                 }
@@ -814,6 +1239,9 @@ public class GitLite {
 
         // checkout 合并后的文件: 先checkout本地, 再checkout远程修改的覆盖
         for (Index.Entry entry : remoteDiff.getRemoved()) {
+            if (entry.getType() == ObjectEntity.Type.tree) {
+                continue;
+            }
             FileUtils.deleteQuietly(new File(PathUtils.concat(config.getLocalDir(), entry.getPath())));
         }
         List<String> remoteAddedOrUpdatedPaths = Stream.concat(remoteDiff.getAdded().stream(), remoteDiff.getUpdated().stream())
@@ -925,18 +1353,15 @@ public class GitLite {
             singleParentChainPath.removeIf(x -> x.getParent() == null);
         }
 
+        // 同步遍历相邻 commit 的 tree, 相同的子树不展开, 顺带得到变化的 tree
         IndexDiffResult combinedDiff = new IndexDiffResult();
+        Map<String, IndexDiffResult> commitDiffs = new HashMap<>();
         for (List<CommitChainItemSingleParent> chainPath : singleParentChainPaths) {
             for (CommitChainItemSingleParent commitChainItem : chainPath) {
-                Index thisIndex = Index.generateFromCommit(commitChainItem.getCommitObjectId(), objectManager);
-                Index parentIndex;
-                if (commitChainItem.getParent() == null || Objects.equals(commitChainItem.getParent().getCommitObjectId(), EMPTY_OBJECT_ID)) {
-                    parentIndex = null;
-                } else {
-                    parentIndex = Index.generateFromCommit(commitChainItem.getParent().getCommitObjectId(), objectManager);
-                }
-                IndexDiffResult committedDiff = IndexDiffer.diff(thisIndex, parentIndex);
+                String parentCommitObjectId = commitChainItem.getParent() == null ? null : commitChainItem.getParent().getCommitObjectId();
+                IndexDiffResult committedDiff = TreeDiffer.diff(commitChainItem.getCommitObjectId(), parentCommitObjectId, objectManager);
                 log.debug("committedDiff to push: {}", JsonUtils.writeValueAsString(committedDiff));
+                commitDiffs.put(commitChainItem.getCommitObjectId(), committedDiff);
 
                 // 2. 上传objects
                 combinedDiff.getAdded().addAll(committedDiff.getAdded());
@@ -966,29 +1391,35 @@ public class GitLite {
         for (List<CommitChainItemSingleParent> singleChain : singleParentChainPaths) {
             for (CommitChainItemSingleParent commitChainItem : singleChain) {
                 // 没有用uploadCommitObjectAndTreeObjectRecursive是为了减少不必要的上传
-                // 查找变化的treeObjectId
-                Map<String, String> parentPath2TreeObjectIdMap = new HashMap<>();
-                if (commitChainItem.getParent() != null && !Objects.equals(commitChainItem.getParent().getCommitObjectId(), EMPTY_OBJECT_ID)) {
-                    getChangedTreeObjectRecursive(commitChainItem.getParent().getCommitObjectId(), "", parentPath2TreeObjectIdMap);
-                }
-                Map<String, String> thisPath2TreeObjectIdMap = new HashMap<>();
-                getChangedTreeObjectRecursive(commitChainItem.getCommitObjectId(), "", thisPath2TreeObjectIdMap);
-                Set<String> changedTreeObjectIds = new HashSet<>();
-                for (String path : thisPath2TreeObjectIdMap.keySet()) {
-                    if (parentPath2TreeObjectIdMap.get(path) != null && Objects.equals(parentPath2TreeObjectIdMap.get(path), thisPath2TreeObjectIdMap.get(path))) {
-                        continue;
-                    }
-                    changedTreeObjectIds.add(thisPath2TreeObjectIdMap.get(path));
-                }
-                objectIdsToUpload.addAll(changedTreeObjectIds);
+                objectIdsToUpload.addAll(commitDiffs.get(commitChainItem.getCommitObjectId()).getChangedTreeObjectIds());
 
                 // 上传commitObjectId
                 objectIdsToUpload.add(commitChainItem.getCommitObjectId());
             }
         }
 
+        // 只在 pack 中的对象直接从 pack 读出来上传, 不用先写成 loose 文件
+        List<String> packedObjectIds = new ArrayList<>();
+        List<String> looseObjectIds = new ArrayList<>();
+        for (String objectId : objectIdsToUpload) {
+            if (ObjectUtils.getObjectFile(config.getObjectsDir(), objectId).exists()) {
+                looseObjectIds.add(objectId);
+            } else {
+                packedObjectIds.add(objectId);
+            }
+        }
+        // 上传时才读出和压缩, 内存里只有正在上传的对象
+        Map<String, String> packedObjectPaths = new LinkedHashMap<>();
+        for (String objectId : packedObjectIds) {
+            packedObjectPaths.put(PathUtils.concat(".git", "objects", ObjectUtils.path(objectId)), objectId);
+        }
+        remoteStorage.uploadBatch(packedObjectPaths.keySet(), targetPath -> {
+            String objectId = packedObjectPaths.get(targetPath);
+            return ByteBuffer.wrap(ZlibCodec.compress(objectManager.read(objectId).toBytes(), config.getCompressionLevel()));
+        });
+
         // upload with session, dont resort
-        remoteStorage.uploadBatch(objectIdsToUpload.stream().map(x -> TransportMapping.of(ObjectUtils.getObjectPath(config.getObjectsDir(), x), PathUtils.concat(".git","objects", ObjectUtils.path(x)))).collect(Collectors.toList()));
+        remoteStorage.uploadBatch(looseObjectIds.stream().map(x -> TransportMapping.of(ObjectUtils.getObjectPath(config.getObjectsDir(), x), PathUtils.concat(".git","objects", ObjectUtils.path(x)))).collect(Collectors.toList()));
 
         // 3. 写remote日志(异常回退)
         LogItem localCommitLogItem = localLogManager.getLogs().stream().filter(x -> Objects.equals(x.getCommitObjectId(), localCommitObjectId)).findFirst().orElse(null);
@@ -1036,61 +1467,52 @@ public class GitLite {
     }
 
 
-    private void getChangedTreeObjectRecursive(String objectId, String path, Map<String, String> path2TreeObjectIdMap) throws IOException {
-        ObjectEntity objectEntity = objectManager.read(objectId);
-        switch (objectEntity.getType()) {
-            case commit:
-                CommitObjectData commitObjectData = CommitObjectData.parseFrom(objectEntity.getData());
-                String tree = commitObjectData.getTree();
-                path2TreeObjectIdMap.put("", tree);
-                getChangedTreeObjectRecursive(tree, "", path2TreeObjectIdMap);
-                break;
-            case tree:
-                TreeObjectData treeObjectData = TreeObjectData.parseFrom(objectEntity.getData());
-                List<TreeObjectData.TreeEntry> entries = treeObjectData.getEntries();
-                for (TreeObjectData.TreeEntry entry : entries) {
-                    if (entry.getType() == ObjectEntity.Type.tree) {
-                        String treePath = PathUtils.concat(path, entry.getName());
-                        path2TreeObjectIdMap.put(treePath, entry.getObjectId());
-                        getChangedTreeObjectRecursive(entry.getObjectId(), treePath, path2TreeObjectIdMap);
-                    }
-                }
-                break;
-            case blob:
-                // do nothing
-                break;
-            default:
-                throw new RuntimeException("type error");
-        }
-    }
-
-
     private void initRemoteDirs(String remoteName) throws IOException {
         Storage remoteStorage = remoteStorageMap.get(remoteName);
         if (remoteStorage == null) {
             throw new RuntimeException("remoteStorage is not exist");
         }
         if (!remoteStorage.exists(PathUtils.concat(".git","refs", "remotes", remoteName))) {
-            remoteStorage.mkdir("");
-            remoteStorage.mkdir(PathUtils.concat(".git",""));
-            remoteStorage.mkdir(PathUtils.concat(".git","objects"));
-            remoteStorage.mkdir(PathUtils.concat(".git","objects", "pack"));
-            remoteStorage.mkdir(PathUtils.concat(".git","objects", "info"));
-            remoteStorage.mkdir(PathUtils.concat(".git","refs"));
-            remoteStorage.mkdir(PathUtils.concat(".git","refs", "remotes"));
-            remoteStorage.mkdir(PathUtils.concat(".git","refs", "remotes", remoteName));
+            List<String> dirs = new ArrayList<>(Arrays.asList("",
+                    PathUtils.concat(".git",""),
+                    PathUtils.concat(".git","objects"),
+                    PathUtils.concat(".git","objects", "pack"),
+                    PathUtils.concat(".git","objects", "info"),
+                    PathUtils.concat(".git","refs"),
+                    PathUtils.concat(".git","refs", "remotes"),
+                    PathUtils.concat(".git","refs", "remotes", remoteName)));
+            // 256 个 objects 子目录一次建好, 第一次 push 时不用逐个检查
+            for (int i = 0; i < 256; i++) {
+                dirs.add(PathUtils.concat(".git", "objects", String.format("%02x", i)));
+            }
+            remoteStorage.mkdir(dirs);
         }
     }
 
-    public void repack() throws IOException {
-        repack(100000);
+    public RepackResult repack() throws IOException {
+        return repack(DEFAULT_REPACK_LIMIT);
+    }
+
+    public RepackResult repack(int limit) throws IOException {
+        return repack(limit, null);
+    }
+
+    /**
+     * 每个 pack 写好后回调, 可以在生成下一个 pack 的同时处理这个
+     */
+    private interface PackListener {
+        void packed(File packDataFile, File packIndexFile) throws IOException;
     }
 
     /**
      * 打包原则： 根据commitChain分段打包: 最新的提交在最新的pack, 旧的pack随着commit的变多会逐渐稳定，内容也会不变。 只要limit不变，多次打包内容不变
      */
-    public void repack(int limit) throws IOException {
+    private RepackResult repack(int limit, PackListener packListener) throws IOException {
         String localCommitObjectId = findLocalCommitObjectId();
+        RepackResult result = new RepackResult();
+        DeltaLimits deltaLimits = new DeltaLimits();
+        deltaLimits.setMaxObjectSize(config.getDeltaMaxObjectSize());
+        deltaLimits.setMaxIndexMemory(config.getDeltaMaxIndexMemory());
 
         Map<String, Block> objectId2BlockMap = new HashMap<>();
         CommitChainItem commitChainHead = getCommitChainHead(localCommitObjectId, EMPTY_OBJECT_ID, objectManager);
@@ -1157,8 +1579,15 @@ public class GitLite {
                         ObjectEntity baseObjectEntity = objectManager.read(lastEntry.getObjectId());
                         byte[] base = baseObjectEntity.getData();
 
-                        DeltaBlock deltaBlock = new RefDeltaBlock(entry.getObjectId(), DeltaUtils.makeDeltas(target, base), lastEntry.getObjectId());
-                        objectId2BlockMap.putIfAbsent(entry.getObjectId(), deltaBlock);
+                        List<Delta> deltas = DeltaUtils.makeDeltas(target, base, deltaLimits);
+                        if (deltas == null) {
+                            // 超过上限, 存完整对象
+                            objectId2BlockMap.putIfAbsent(entry.getObjectId(), new BaseBlock(entry.getObjectId(), entry.getType(), target));
+                            result.getDeltaSkippedObjectIds().add(entry.getObjectId());
+                        } else {
+                            DeltaBlock deltaBlock = new RefDeltaBlock(entry.getObjectId(), deltas, lastEntry.getObjectId());
+                            objectId2BlockMap.putIfAbsent(entry.getObjectId(), deltaBlock);
+                        }
 
                         // region debug
                         if (log.isDebugEnabled()) {
@@ -1189,11 +1618,15 @@ public class GitLite {
 
         PackFile finalPackFile = new PackFile();
         finalPackFile.setBlockList(new ArrayList<>(blocks));
-        finalPackFile.setHeader(new PackFile.Header(1, blocks.size()));
+        PackFile.Header header = new PackFile.Header(Compressors.of(config.getPackCompression()), blocks.size());
+        header.setCompressionLevel(config.getCompressionLevel());
+        finalPackFile.setHeader(header);
 
         List<PackFile> subPackFiles = finalPackFile.split(limit);
-        int size = PackFileFormatter.size(finalPackFile);
-        log.debug("size:" + size);
+        if (log.isDebugEnabled()) {
+            // 会压缩所有 block, 只在 debug 时计算
+            log.debug("size:" + PackFileFormatter.size(finalPackFile));
+        }
 
         PackInfo packInfo = new PackInfo();
         List<PackReader.PackPair> packPairs = new ArrayList<>();
@@ -1224,6 +1657,14 @@ public class GitLite {
             // endregion
 
             packPairs.add(new PackReader.PackPair(packIndexFile, packDataFile));
+            result.getPackNames().add(packDataFile.getName());
+            if (packListener != null) {
+                packListener.packed(packDataFile, packIndexFile);
+            }
+        }
+        result.setBlockCount(blocks.size());
+        if (!result.getDeltaSkippedObjectIds().isEmpty()) {
+            log.info("delta skipped for {} objects over limits: {}", result.getDeltaSkippedObjectIds().size(), result.getDeltaSkippedObjectIds());
         }
 
         // write pack info tmp
@@ -1291,7 +1732,7 @@ public class GitLite {
 
         // todo: optimization: index -> fileHistoryChain (rename)
 
-
+        return result;
     }
 
     /**
@@ -1321,59 +1762,70 @@ public class GitLite {
             return;
         }
 
-        fetch(remoteName);
-        String remoteCommitObjectIdAfterFetch = findRemoteCommitObjectId(remoteName);
-        if (!StringUtils.equals(remoteCommitObjectId, remoteCommitObjectIdAfterFetch)) {
-            merge(remoteName);
-            checkout();
-            localCommitObjectId = findLocalCommitObjectId();
-            remoteCommitObjectId = remoteCommitObjectIdAfterFetch;
+        StageTimer timer = new StageTimer();
+        lastPushStages = timer;
+        ExecutorService executor = newPushExecutor();
+        try {
+            timer.start("fetch");
+            fetch(remoteName);
+            timer.stop("fetch");
+            String remoteCommitObjectIdAfterFetch = findRemoteCommitObjectId(remoteName);
+            if (!StringUtils.equals(remoteCommitObjectId, remoteCommitObjectIdAfterFetch)) {
+                timer.start("merge");
+                merge(remoteName);
+                checkout();
+                timer.stop("merge");
+                localCommitObjectId = findLocalCommitObjectId();
+                remoteCommitObjectId = remoteCommitObjectIdAfterFetch;
+            }
+            packAndPush(remoteName, remoteStorage, remoteLogManager, localCommitObjectId, remoteCommitObjectId, timer, executor);
+        } finally {
+            executor.shutdownNow();
+            log.info("push stages: {}", timer);
         }
+    }
 
-        log.info("repack start ... ");
-        repack();
-        log.info("repack end ... ");
-
+    private void packAndPush(String remoteName, Storage remoteStorage, LogManager remoteLogManager, String localCommitObjectId, String remoteCommitObjectId,
+                             StageTimer timer, ExecutorService executor) throws IOException {
+        // 一次列出远程 pack 目录, 在本地算出缺少的 pack 和 idx
+        Set<String> remotePackDirNames = new HashSet<>(remoteStorage.list(PathUtils.concat(".git", "objects", "pack")));
+
+        // 每个 pack 写好就开始上传, 同时生成下一个
+        log.info("repack and upload packs start ... ");
+        List<Future<?>> uploads = new ArrayList<>();
+        timer.start("repack");
+        repack(DEFAULT_REPACK_LIMIT, (packDataFile, packIndexFile) -> {
+            for (File file : Arrays.asList(packDataFile, packIndexFile)) {
+                if (remotePackDirNames.contains(file.getName())) {
+                    log.info(file.getName() + " exists, no upload");
+                    continue;
+                }
+                uploads.add(executor.submit(() -> {
+                    timer.start("upload");
+                    remoteStorage.upload(file.getAbsolutePath(), PathUtils.concat(".git", "objects", "pack", file.getName()));
+                    timer.stop("upload");
+                    return null;
+                }));
+            }
+        });
+        timer.stop("repack");
+        waitAll(uploads);
+        log.info("repack and upload packs end ... ");
 
-        // upload packs
-        log.info("upload packs start ... ");
         String packsInfoPath = PathUtils.concat(config.getObjectInfoDir(), "packs");
         File packsInfoFile = new File(packsInfoPath);
-        if (!packsInfoFile.exists()) {
-            push(remoteName);
-            return;
-        }
-        PackInfo packInfo = JsonUtils.readValue(packsInfoFile, PackInfo.class);
+        PackInfo packInfo = packsInfoFile.exists() ? JsonUtils.readValue(packsInfoFile, PackInfo.class) : null;
         if (packInfo == null) {
             push(remoteName);
             return;
         }
         List<PackInfo.Item> items = packInfo.getItems();
-        for (PackInfo.Item item : items) {
-
-            String remotePackPath = PathUtils.concat(".git","objects", "pack", item.getName());
-            if (remoteStorage.exists(remotePackPath)) {
-                log.info(item.getName() + " pack exists, no upload");
-                continue;
-            }
-            String packPath = PathUtils.concat(config.getObjectPackDir(), item.getName());
-            remoteStorage.upload(packPath, remotePackPath);
-
-            String remoteIndexPath = PackUtils.getIndexPath(remotePackPath);
-            if (remoteStorage.exists(remoteIndexPath)) {
-                log.info(item.getName() + " idx exists, no upload");
-                continue;
-            }
-            String indexPath = PackUtils.getIndexPath(packPath);
-            remoteStorage.upload(indexPath, remoteIndexPath);
-
-        }
-        log.info("upload packs end ... ");
 
 
         Set<String> newPackFileNames = items.stream().map(PackInfo.Item::getName).collect(Collectors.toSet());
 
         // pack info 移动到packs.old
+        timer.start("packInfo");
         log.info("move remote pack to packs.old start ... ");
         String remotePackInfoPath = PathUtils.concat(".git", "objects", "info", "packs");
         String oldRemotePackInfoPath = PathUtils.concat(".git", "objects", "info", "packs.old");
@@ -1393,10 +1845,12 @@ public class GitLite {
             log.error("upload new pack info error, rollback", e);
         }
         log.info("upload pack info end ... ");
+        timer.stop("packInfo");
 
-        log.info("delete old pack start ... ");
-        if (remoteStorage.exists(oldRemotePackInfoPath)) {
-            // 删除旧 pack files
+        // 新 pack info 已经生效, 旧 pack 并发删除, 同时更新 ref
+        List<Future<?>> deletions = new ArrayList<>();
+        boolean oldPackInfoLeft = remoteStorage.exists(oldRemotePackInfoPath);
+        if (oldPackInfoLeft) {
             String oldPackInfoStr = remoteStorage.readFullToString(oldRemotePackInfoPath);
             PackInfo oldPackInfo = JsonUtils.readValue(oldPackInfoStr, PackInfo.class);
             if (oldPackInfo != null) {
@@ -1404,21 +1858,21 @@ public class GitLite {
                     if (newPackFileNames.contains(item.getName())) {
                         continue;
                     }
-                    remoteStorage.delete(PathUtils.concat(".git","objects", "pack", item.getName()));
-                    remoteStorage.delete(PackUtils.getIndexPath(PathUtils.concat(".git","objects", "pack", item.getName())));
+                    String oldPackPath = PathUtils.concat(".git", "objects", "pack", item.getName());
+                    for (String path : Arrays.asList(oldPackPath, PackUtils.getIndexPath(oldPackPath))) {
+                        deletions.add(executor.submit(() -> {
+                            timer.start("deleteOldPacks");
+                            remoteStorage.delete(path);
+                            timer.stop("deleteOldPacks");
+                            return null;
+                        }));
+                    }
                 }
             }
-            log.info("delete old pack end ... ");
-
-
-            // 删除旧 pack info file
-            log.info("delete old pack info start ... ");
-            remoteStorage.delete(oldRemotePackInfoPath);
-            log.info("delete old pack info end ... ");
         }
 
-
         // 3. 写remote日志(异常回退)
+        timer.start("updateRef");
         log.info("write remote log start ... ");
         String finalLocalCommitObjectId = localCommitObjectId;
         LogItem localCommitLogItem = localLogManager.getLogs().stream().filter(x -> Objects.equals(x.getCommitObjectId(), finalLocalCommitObjectId)).findFirst().orElse(null);
@@ -1477,6 +1931,61 @@ public class GitLite {
             throw e;
         }
         log.info("write remote log end ... ");
+        timer.stop("updateRef");
+
+        if (oldPackInfoLeft) {
+            try {
+                waitAll(deletions);
+                // 旧 pack 都删掉后再删除旧 pack info, 删除失败时留着, 下次 push 会覆盖
+                remoteStorage.delete(oldRemotePackInfoPath);
+            } catch (IOException | RuntimeException e) {
+                log.warn("delete old packs failed, ignored", e);
+            }
+        }
+    }
+
+    private ExecutorService newPushExecutor() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, config.getTransferParallelism()), r -> {
+            Thread thread = new Thread(r, "push-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 等待全部完成, 抛出第一个失败
+     */
+    private static void waitAll(List<Future<?>> futures) throws IOException {
+        Throwable failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("push interrupted");
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw new IOException(failure);
+        }
+    }
+
+    /**
+     * 最近一次 packAndPush 各阶段的耗时
+     */
+    public StageTimer getLastPushStages() {
+        return lastPushStages;
     }
 
     private boolean needFetchAndMerge(CommitChainItem commitChainHead, String targetCommitObjectId) {
@@ -1527,35 +2036,20 @@ public class GitLite {
         sortBlocksByCommitChain(parents, objectId2BlockMap, blocks);
     }
 
-    public GitLiteConfig getConfig() {
-        return config;
+    public FlattenedTreeCache.Stats getFlattenedTreeCacheStats() {
+        return FlattenedTreeCache.forRepository(objectManager).getStats();
     }
 
-    @Data
-    private static class FileNode {
-        private File file;
-        private List<FileNode> children = new ArrayList<>();
-        private String objectId;
-        private ObjectEntity.Type type;
-
-        public FileNode(File file) {
-            this.file = file;
-            if (file.isDirectory()) {
-                type = ObjectEntity.Type.tree;
-            }
-            if (file.isFile()) {
-                type = ObjectEntity.Type.blob;
-            }
-        }
-
-        void addChild(FileNode fileNode) {
-            children.add(fileNode);
-        }
-
-        String getFileName() {
-            return file.getName();
-        }
+    /**
+     * WebDAV remote 的请求和连接复用统计, 其他 remote 返回 null
+     */
+    public TransportMetrics.Stats getTransportStats(String remoteName) {
+        Storage remoteStorage = remoteStorageMap.get(remoteName);
+        return remoteStorage instanceof SardineStorage ? ((SardineStorage) remoteStorage).getTransportStats() : null;
     }
 
+    public GitLiteConfig getConfig() {
+        return config;
+    }
 
 }
@@ -1,5 +1,8 @@
 package com.beyond.jgit;
 
+import com.beyond.jgit.index.FlattenedTreeCache;
+import com.beyond.jgit.storage.SardineStorage;
+import com.beyond.jgit.storage.TransportProfile;
 import com.beyond.jgit.util.JsonUtils;
 import com.beyond.jgit.util.PathUtils;
 import lombok.Data;
@@ -38,12 +41,80 @@ public class GitLiteConfig {
 
     private String ignorePath;
 
+    /**
+     * zlib 压缩级别, 0-9, -1 为默认
+     */
+    private int compressionLevel = -1;
+
+    /**
+     * pack 的压缩算法: zlib, zstd, lz4. loose object 始终是 zlib
+     */
+    private String packCompression = "zlib";
+
+    /**
+     * 超过这个大小的对象 repack 时不做 delta
+     */
+    private long deltaMaxObjectSize = 16 * 1024 * 1024;
+
+    /**
+     * 单个对象做 delta 时索引结构的内存上限
+     */
+    private long deltaMaxIndexMemory = 64 * 1024 * 1024;
+
+    /**
+     * 扫描工作区和计算 hash 的线程数
+     */
+    private int scanParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * checkout 写文件的线程数
+     */
+    private int checkoutParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * checkout 时已读出还没写入磁盘的数据上限
+     */
+    private long checkoutMemoryBudget = 64 * 1024 * 1024;
+
+    /**
+     * 用 WatchService 监听工作区, 只重新扫描变化过的路径
+     */
+    private boolean watchWorkTree = false;
+
+    /**
+     * sparse checkout 的 pattern, 语法和 .gitignore 相同, 为空时检出全部文件.
+     * 以 / 开头的目录 pattern (如 /docs/) 可以让 tree 遍历跳过其余目录
+     */
+    private List<String> sparsePatterns = new ArrayList<>();
+
+    /**
+     * commit 展开后的 entry 缓存上限, 按 entry 个数计算
+     */
+    private long flattenedTreeCacheMaxEntries = FlattenedTreeCache.DEFAULT_MAX_ENTRIES;
+
+    /**
+     * 和 WebDAV 远程之间同时进行的上传/下载请求数
+     */
+    private int transferParallelism = SardineStorage.DEFAULT_PARALLELISM;
+
+    /**
+     * 单个请求失败后的重试次数, 间隔从 transferRetryBackoffMillis 开始翻倍
+     */
+    private int transferMaxRetries = SardineStorage.DEFAULT_MAX_RETRIES;
+
+    private long transferRetryBackoffMillis = SardineStorage.DEFAULT_RETRY_BACKOFF_MILLIS;
+
+    /**
+     * fetch 时不小于这个大小的远程 pack 先只下载 idx, 本地缺少的对象不多时用 Range 读取
+     */
+    private long packRangeFetchMinSize = 64 * 1024 * 1024;
+
     public static GitLiteConfig simpleConfig(String localDir, String committerName, String committerEmail) {
         GitLiteConfig config = new GitLiteConfig();
         config.setLocalDir(localDir);
         config.setGitDir(PathUtils.concat(config.getLocalDir(), ".git"));
         config.setHeadPath(PathUtils.concat(config.getGitDir(), "HEAD"));
-        config.setIndexPath(PathUtils.concat(config.getGitDir(), "index.json"));
+        config.setIndexPath(PathUtils.concat(config.getGitDir(), "index"));
         config.setObjectsDir(PathUtils.concat(config.getGitDir(), "objects"));
         config.setRefsDir(PathUtils.concat(config.getGitDir(), "refs"));
         config.setRefsRemotesDir(PathUtils.concat(config.getGitDir(), "refs", "remotes"));
@@ -116,6 +187,11 @@ public class GitLiteConfig {
         private String remotePassword;
         private String remoteTmpDir;
 
+        /**
+         * http 连接参数, 只对 WebDAV remote 有效
+         */
+        private TransportProfile transportProfile = new TransportProfile();
+
         @Deprecated
         public RemoteConfig(){
 
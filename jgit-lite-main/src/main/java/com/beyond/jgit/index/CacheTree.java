@@ -0,0 +1,112 @@
+package com.beyond.jgit.index;
+
+import com.beyond.jgit.util.ObjectUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * index 的 TREE 扩展: 目录 -> tree objectId.
+ * <p>
+ * entry 变化时把它所有上级目录的记录删掉, commit 时只重新生成这些目录的 tree.
+ * 根目录的 key 是空字符串.
+ */
+public class CacheTree {
+
+    public static final byte[] SIGNATURE = new byte[]{'T', 'R', 'E', 'E'};
+
+    private final Map<String, String> dir2TreeId = new TreeMap<>();
+
+    /**
+     * 有变化时需要把 index 写回
+     */
+    private boolean changed;
+
+    public String get(String dir) {
+        return dir2TreeId.get(dir);
+    }
+
+    public void put(String dir, String treeObjectId) {
+        if (!treeObjectId.equals(dir2TreeId.put(dir, treeObjectId))) {
+            changed = true;
+        }
+    }
+
+    /**
+     * path 是 entry 的路径, 它的上级目录一直到根目录都失效
+     */
+    public void invalidate(String path) {
+        if (dir2TreeId.isEmpty()) {
+            return;
+        }
+        int end = path.lastIndexOf(File.separatorChar);
+        while (end > 0) {
+            if (dir2TreeId.remove(path.substring(0, end)) != null) {
+                changed = true;
+            }
+            end = path.lastIndexOf(File.separatorChar, end - 1);
+        }
+        if (dir2TreeId.remove("") != null) {
+            changed = true;
+        }
+    }
+
+    public void clear() {
+        if (!dir2TreeId.isEmpty()) {
+            dir2TreeId.clear();
+            changed = true;
+        }
+    }
+
+    public boolean isEmpty() {
+        return dir2TreeId.isEmpty();
+    }
+
+    public boolean isChanged() {
+        return changed;
+    }
+
+    public CacheTree copy() {
+        CacheTree cacheTree = new CacheTree();
+        cacheTree.dir2TreeId.putAll(dir2TreeId);
+        return cacheTree;
+    }
+
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(dir2TreeId.size() * 40);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(dir2TreeId.size());
+        for (Map.Entry<String, String> entry : dir2TreeId.entrySet()) {
+            byte[] dir = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeShort(dir.length);
+            out.write(dir);
+            out.write(ObjectUtils.hexToByteArray(entry.getValue()));
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    public static CacheTree parse(ByteBuffer buffer) {
+        CacheTree cacheTree = new CacheTree();
+        int count = buffer.getInt();
+        byte[] objectId = new byte[20];
+        for (int i = 0; i < count; i++) {
+            byte[] dir = new byte[buffer.getShort() & 0xffff];
+            buffer.get(dir);
+            buffer.get(objectId);
+            cacheTree.dir2TreeId.put(new String(dir, StandardCharsets.UTF_8), ObjectUtils.bytesToHex(objectId));
+        }
+        return cacheTree;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheTree" + dir2TreeId;
+    }
+}
@@ -0,0 +1,363 @@
+package com.beyond.jgit.index;
+
+import com.beyond.delta.DeltaUtils;
+import com.beyond.jgit.object.ObjectEntity;
+import com.beyond.jgit.object.ObjectManager;
+import com.beyond.jgit.object.data.BlobObjectData;
+import com.beyond.jgit.pack.*;
+import com.beyond.jgit.util.FormatUtils;
+import com.beyond.jgit.util.ObjectUtils;
+import com.beyond.jgit.util.PackUtils;
+import com.beyond.jgit.util.PathUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * checkout 时把 blob 写到工作区.
+ * <p>
+ * pack 不整个加载, 只解析 idx 得到每个对象的 (pack, offset), 按这个顺序提交给线程池, 由工作线程从 FileChannel 读出对应的块再解压和写文件.
+ * 提交前按块头记录的大小占用 memoryBudget, 写完释放, 超过时提交线程等待.
+ */
+@Slf4j
+public class CheckoutWriter {
+
+    /**
+     * 块头: 类型和长度 + 解压后长度或 ref, 不超过 32 字节
+     */
+    private static final int BLOCK_HEAD_BYTES = 32;
+
+    private final String localDir;
+    private final String objectsDir;
+    private final ObjectManager objectManager;
+    private final int memoryBudget;
+
+    private final ExecutorService pool;
+
+    public CheckoutWriter(String localDir, String objectsDir, ObjectManager objectManager, int parallelism, long memoryBudget) {
+        this.localDir = localDir;
+        this.objectsDir = objectsDir;
+        this.objectManager = objectManager;
+        this.memoryBudget = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget));
+        int threads = Math.max(1, parallelism);
+        AtomicInteger threadIndex = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "checkout-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        this.pool = pool;
+    }
+
+    /**
+     * @return 写入文件的 stat, key 为 entry path
+     */
+    public Map<String, FileStat> write(Collection<Index.Entry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        long startTime = System.currentTimeMillis();
+        mkdirs(entries);
+
+        Map<String, FileStat> stats = new ConcurrentHashMap<>();
+        AtomicLong totalBytes = new AtomicLong();
+        try (PackChannels packs = PackChannels.open(objectsDir)) {
+            List<Located> locatedList = locate(entries, packs);
+            Semaphore budget = new Semaphore(memoryBudget);
+            List<Future<?>> futures = new ArrayList<>(locatedList.size());
+            boolean done = false;
+            try {
+                for (Located located : locatedList) {
+                    String objectId = located.entry.getObjectId();
+                    int permits = (int) Math.max(1, Math.min(estimateSize(objectId, packs), memoryBudget));
+                    budget.acquire(permits);
+                    String path = located.entry.getPath();
+                    futures.add(pool.submit(() -> {
+                        try {
+                            ObjectEntity objectEntity = readObject(objectId, packs);
+                            if (objectEntity.getType() != ObjectEntity.Type.blob) {
+                                return null;
+                            }
+                            byte[] data = BlobObjectData.parseFrom(objectEntity.getData()).getData();
+                            File file = new File(PathUtils.concat(localDir, path));
+                            Files.write(file.toPath(), data);
+                            stats.put(path, FileStat.of(file));
+                            totalBytes.addAndGet(data.length);
+                            return null;
+                        } finally {
+                            budget.release(permits);
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                done = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } finally {
+                if (!done) {
+                    // 不中断工作线程, 中断会关掉共用的 FileChannel
+                    futures.forEach(x -> x.cancel(false));
+                }
+            }
+        }
+
+        long cost = Math.max(1, System.currentTimeMillis() - startTime);
+        log.info("checkout {} files, {} bytes, cost {}ms, {} files/s", stats.size(), totalBytes.get(), cost, stats.size() * 1000L / cost);
+        return stats;
+    }
+
+    /**
+     * 不在 pack 中的对象在前, pack 中的对象按 pack 和 offset 排序, 读 pack 时尽量顺序访问
+     */
+    private List<Located> locate(Collection<Index.Entry> entries, PackChannels packs) {
+        List<Located> result = new ArrayList<>(entries.size());
+        for (Index.Entry entry : entries) {
+            Located located = new Located(entry);
+            PackedObject packed = packs.get(entry.getObjectId());
+            if (packed != null) {
+                located.packIndex = packed.packIndex;
+                located.offset = packed.offset;
+            }
+            result.add(located);
+        }
+        result.sort(Comparator.<Located>comparingInt(x -> x.packIndex).thenComparingInt(x -> x.offset));
+        return result;
+    }
+
+    /**
+     * 在工作线程中执行. 对象内容不变, pack 中有就从 pack 读, 否则交给 objectManager
+     */
+    private ObjectEntity readObject(String objectId, PackChannels packs) throws IOException {
+        PackedObject packed = packs.get(objectId);
+        if (packed == null) {
+            return objectManager.read(objectId);
+        }
+        Block block = PackFileFormatter.parseNextBlock(packs.read(packed, packed.length()), 0, packs.header(packed));
+        ObjectEntity result = new ObjectEntity();
+        if (block instanceof BaseBlock) {
+            result.setType(((BaseBlock) block).getType());
+            result.setData(((BaseBlock) block).getContent());
+            return result;
+        }
+        if (block instanceof RefDeltaBlock) {
+            ObjectEntity refObjectEntity = readObject(((RefDeltaBlock) block).getRef(), packs);
+            result.setType(refObjectEntity.getType());
+            result.setData(DeltaUtils.applyDeltas(((RefDeltaBlock) block).getDeltas(), refObjectEntity.getData()));
+            return result;
+        }
+        throw new RuntimeException("OfsDeltaBlock is not supported yet");
+    }
+
+    /**
+     * 读取和解压时要占用的内存, 只读块头
+     */
+    private long estimateSize(String objectId, PackChannels packs) throws IOException {
+        PackedObject packed = packs.get(objectId);
+        if (packed == null) {
+            return estimateLooseSize(objectId);
+        }
+        byte[] head = packs.read(packed, Math.min(BLOCK_HEAD_BYTES, packed.length()));
+        int[] typeAndSize = new int[3];
+        int offset = FormatUtils.readNextDynamicTypeAndSize(3, head, 0, typeAndSize);
+        int type = typeAndSize[1];
+        int size = typeAndSize[2];
+        if (type == 7) {
+            // base 和结果同时在内存中, 结果按 base 的大小估算
+            String ref = ObjectUtils.bytesToHex(FormatUtils.readNextBytes(head, offset, 20));
+            return estimateSize(ref, packs) * 2 + size;
+        }
+        if (packs.header(packed).hasRawSize() && type >= 1 && type <= 3) {
+            return size + (long) FormatUtils.readNextDynamicInt(head, offset);
+        }
+        // 旧格式不记录解压后长度, 按压缩后长度估算
+        return (long) size * 4;
+    }
+
+    /**
+     * loose 对象只解压开头的 "type size\0"
+     */
+    private long estimateLooseSize(String objectId) throws IOException {
+        File file = ObjectUtils.getObjectFile(objectsDir, objectId);
+        if (!file.exists()) {
+            return 1;
+        }
+        byte[] compressed = new byte[(int) Math.min(file.length(), 256)];
+        try (InputStream in = new FileInputStream(file)) {
+            int n = 0;
+            while (n < compressed.length) {
+                int read = in.read(compressed, n, compressed.length - n);
+                if (read < 0) {
+                    break;
+                }
+                n += read;
+            }
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] head = new byte[32];
+            int len = inflater.inflate(head);
+            String header = new String(head, 0, len, StandardCharsets.US_ASCII);
+            int space = header.indexOf(' ');
+            int nul = header.indexOf('\0');
+            if (space > 0 && nul > space) {
+                return Long.parseLong(header.substring(space + 1, nul));
+            }
+        } catch (DataFormatException | NumberFormatException e) {
+            log.debug("parse loose header failed: {}", objectId, e);
+        } finally {
+            inflater.end();
+        }
+        return file.length() * 4;
+    }
+
+    /**
+     * 先一次性建好所有上级目录, 写文件时不再逐个检查
+     */
+    private void mkdirs(Collection<Index.Entry> entries) throws IOException {
+        Set<File> dirs = new TreeSet<>();
+        for (Index.Entry entry : entries) {
+            File parent = new File(PathUtils.concat(localDir, entry.getPath())).getParentFile();
+            if (parent != null) {
+                dirs.add(parent);
+            }
+        }
+        for (File dir : dirs) {
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("mkdir fail: " + dir);
+            }
+        }
+    }
+
+    private static class Located {
+        private final Index.Entry entry;
+        private int packIndex = -1;
+        private int offset;
+
+        private Located(Index.Entry entry) {
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * pack 中的一个块, [offset, end)
+     */
+    private static class PackedObject {
+        private final int packIndex;
+        private final int offset;
+        private final int end;
+
+        private PackedObject(int packIndex, int offset, int end) {
+            this.packIndex = packIndex;
+            this.offset = offset;
+            this.end = end;
+        }
+
+        private int length() {
+            return end - offset;
+        }
+    }
+
+    /**
+     * 本次 checkout 用到的 pack: 每个 pack 一个 FileChannel, 按位置读, 多个线程可以同时读.
+     * 块的结束位置是 idx 中下一个 offset, 最后一个块到 trailer 之前
+     */
+    private static class PackChannels implements Closeable {
+        private final List<FileChannel> channels = new ArrayList<>();
+        private final List<PackFile.Header> headers = new ArrayList<>();
+        private final Map<String, PackedObject> objects = new HashMap<>();
+
+        private static PackChannels open(String objectsDir) throws IOException {
+            PackChannels packs = new PackChannels();
+            PackInfo packInfo = PackUtils.readPackInfo(objectsDir);
+            if (packInfo == null) {
+                return packs;
+            }
+            try {
+                for (PackInfo.Item item : packInfo.getItems()) {
+                    PackReader.PackPair packPair = PackUtils.getPackPair(objectsDir, item.getName());
+                    packs.add(packPair.getPackDataFile(), FileUtils.readFileToByteArray(packPair.getPackIndexFile()));
+                }
+            } catch (IOException | RuntimeException e) {
+                packs.close();
+                throw e;
+            }
+            return packs;
+        }
+
+        private void add(File packDataFile, byte[] packIndexBytes) throws IOException {
+            int packIndex = channels.size();
+            FileChannel channel = FileChannel.open(packDataFile.toPath(), StandardOpenOption.READ);
+            channels.add(channel);
+            byte[] headerBytes = new byte[12];
+            readFully(channel, ByteBuffer.wrap(headerBytes), 0);
+            headers.add(PackFile.Header.parse(headerBytes));
+
+            List<PackIndex.Item> items = new ArrayList<>(PackIndexFormatter.parse(packIndexBytes));
+            items.sort(Comparator.comparingInt(PackIndex.Item::getOffset));
+            int trailerStart = (int) (channel.size() - 20);
+            for (int i = 0; i < items.size(); i++) {
+                PackIndex.Item item = items.get(i);
+                int end = i + 1 < items.size() ? items.get(i + 1).getOffset() : trailerStart;
+                objects.putIfAbsent(item.getObjectId(), new PackedObject(packIndex, item.getOffset(), end));
+            }
+        }
+
+        private PackedObject get(String objectId) {
+            return objects.get(objectId);
+        }
+
+        private PackFile.Header header(PackedObject packed) {
+            return headers.get(packed.packIndex);
+        }
+
+        private byte[] read(PackedObject packed, int len) throws IOException {
+            byte[] bytes = new byte[len];
+            readFully(channels.get(packed.packIndex), ByteBuffer.wrap(bytes), packed.offset);
+            return bytes;
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new EOFException("unexpected end of pack at " + position);
+                }
+                position += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+}
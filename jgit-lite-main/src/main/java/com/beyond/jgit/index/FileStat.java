@@ -0,0 +1,52 @@
+package com.beyond.jgit.index;
+
+import lombok.Data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+/**
+ * 工作区文件的 stat 信息, 用来判断文件是否变化而不用重新算 hash
+ */
+@Data
+public class FileStat {
+
+    private static volatile boolean unixSupported = true;
+
+    private long mtime;
+    private long ctime;
+    private long size;
+    private long inode;
+
+    public static FileStat of(File file) throws IOException {
+        return of(file.toPath());
+    }
+
+    public static FileStat of(Path path) throws IOException {
+        FileStat stat = new FileStat();
+        if (unixSupported) {
+            try {
+                // 一次系统调用拿到全部属性
+                Map<String, Object> attrs = Files.readAttributes(path, "unix:size,lastModifiedTime,ctime,ino", LinkOption.NOFOLLOW_LINKS);
+                stat.setSize((Long) attrs.get("size"));
+                stat.setMtime(((FileTime) attrs.get("lastModifiedTime")).toMillis());
+                stat.setCtime(((FileTime) attrs.get("ctime")).toMillis());
+                stat.setInode((Long) attrs.get("ino"));
+                return stat;
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                unixSupported = false;
+            }
+        }
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        stat.setSize(attrs.size());
+        stat.setMtime(attrs.lastModifiedTime().toMillis());
+        stat.setCtime(attrs.creationTime().toMillis());
+        return stat;
+    }
+}
@@ -0,0 +1,135 @@
+package com.beyond.jgit.index;
+
+import com.beyond.jgit.object.ObjectEntity;
+import com.beyond.jgit.object.ObjectManager;
+import lombok.Data;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * commit 展开后的 entry 列表缓存, 每个仓库 (ObjectManager) 一份.
+ * <p>
+ * 按 entry 总数限制大小, 超过时淘汰最久没用到的 commit. 缓存的列表不可修改, 直接共享给调用方,
+ * {@link Index} 在第一次修改时才复制.
+ */
+public class FlattenedTreeCache {
+
+    public static final long DEFAULT_MAX_ENTRIES = 500_000;
+
+    private static final Map<ObjectManager, FlattenedTreeCache> REPOSITORY_CACHES = new WeakHashMap<>();
+
+    private final LinkedHashMap<String, Flattened> commitObjectId2Flattened = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long maxEntries;
+    private long entryCount;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public FlattenedTreeCache(long maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public static FlattenedTreeCache forRepository(ObjectManager objectManager) {
+        synchronized (REPOSITORY_CACHES) {
+            return REPOSITORY_CACHES.computeIfAbsent(objectManager, x -> new FlattenedTreeCache(DEFAULT_MAX_ENTRIES));
+        }
+    }
+
+    /**
+     * @return tree 和 blob, 按 path 排序, 不可修改. 没有缓存时返回 null
+     */
+    public synchronized List<Index.Entry> getTreeAndBlob(String commitObjectId) {
+        Flattened flattened = get(commitObjectId);
+        return flattened == null ? null : flattened.treeAndBlob;
+    }
+
+    /**
+     * @return 只有 blob, 按 path 排序, 不可修改. 没有缓存时返回 null
+     */
+    public synchronized List<Index.Entry> getBlob(String commitObjectId) {
+        Flattened flattened = get(commitObjectId);
+        return flattened == null ? null : flattened.blob;
+    }
+
+    private Flattened get(String commitObjectId) {
+        Flattened flattened = commitObjectId2Flattened.get(commitObjectId);
+        if (flattened == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return flattened;
+    }
+
+    /**
+     * @param treeAndBlob 按 path 排好序的 tree 和 blob, 放入后不能再修改
+     */
+    public synchronized void put(String commitObjectId, List<Index.Entry> treeAndBlob) {
+        Flattened flattened = new Flattened(treeAndBlob);
+        Flattened old = commitObjectId2Flattened.put(commitObjectId, flattened);
+        if (old != null) {
+            entryCount -= old.treeAndBlob.size();
+        }
+        entryCount += treeAndBlob.size();
+        evictIfNeeded(commitObjectId);
+    }
+
+    /**
+     * 刚放入的 commit 即使超过上限也保留
+     */
+    private void evictIfNeeded(String keep) {
+        Iterator<Map.Entry<String, Flattened>> iterator = commitObjectId2Flattened.entrySet().iterator();
+        while (entryCount > maxEntries && iterator.hasNext()) {
+            Map.Entry<String, Flattened> eldest = iterator.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            entryCount -= eldest.getValue().treeAndBlob.size();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void setMaxEntries(long maxEntries) {
+        this.maxEntries = maxEntries;
+        evictIfNeeded(null);
+    }
+
+    public synchronized void clear() {
+        commitObjectId2Flattened.clear();
+        entryCount = 0;
+    }
+
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.setCommits(commitObjectId2Flattened.size());
+        stats.setEntries(entryCount);
+        stats.setMaxEntries(maxEntries);
+        stats.setHits(hits);
+        stats.setMisses(misses);
+        stats.setEvictions(evictions);
+        return stats;
+    }
+
+    private static class Flattened {
+        private final List<Index.Entry> treeAndBlob;
+        private final List<Index.Entry> blob;
+
+        private Flattened(List<Index.Entry> treeAndBlob) {
+            this.treeAndBlob = Collections.unmodifiableList(treeAndBlob);
+            this.blob = Collections.unmodifiableList(treeAndBlob.stream().filter(x -> x.getType() == ObjectEntity.Type.blob).collect(Collectors.toList()));
+        }
+    }
+
+    @Data
+    public static class Stats {
+        private int commits;
+        private long entries;
+        private long maxEntries;
+        private long hits;
+        private long misses;
+        private long evictions;
+    }
+}
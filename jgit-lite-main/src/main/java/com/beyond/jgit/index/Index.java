@@ -1,15 +1,19 @@
 package com.beyond.jgit.index;
 
+import com.beyond.jgit.ignore.IgnoreNode;
 import com.beyond.jgit.object.ObjectEntity;
 import com.beyond.jgit.object.ObjectManager;
 import com.beyond.jgit.object.data.CommitObjectData;
 import com.beyond.jgit.object.data.TreeObjectData;
-import com.beyond.jgit.util.FileUtil;
-import com.beyond.jgit.util.JsonUtils;
 import com.beyond.jgit.util.ObjectUtils;
 import com.beyond.jgit.util.PathUtils;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AccessLevel;
 import lombok.Data;
-import org.apache.commons.io.FileUtils;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 
 import java.io.File;
 import java.io.IOException;
@@ -21,23 +25,198 @@ import static com.beyond.jgit.GitLite.EMPTY_OBJECT_ID;
 @Data
 public class Index {
 
-    private static Map<String, List<Entry>> commitObjectId2BlobAndTreeEntriesCache = Collections.synchronizedMap(new LinkedHashMap<>());
-    private static Map<String, List<Entry>> commitObjectId2BlobEntriesCache = Collections.synchronizedMap(new LinkedHashMap<>());
-    private static final int CACHE_SIZE = 1000;
-
     private List<Entry> entries = new ArrayList<>();
 
+    /**
+     * entries 是 {@link FlattenedTreeCache} 中共享的不可变列表, 修改前先复制
+     */
+    @JsonIgnore
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private boolean sharedEntries;
+
+    /**
+     * 读取时 index 文件的修改时间, 用于判断 racy clean
+     */
+    @JsonIgnore
+    private long indexMtime;
+
+    @JsonIgnore
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private CacheTree cacheTree = new CacheTree();
+
+    /**
+     * 整体替换 entries 后原来的 cache tree 不再可信
+     */
+    public void setEntries(List<Entry> entries) {
+        this.entries = entries;
+        this.sharedEntries = false;
+        this.cacheTree.clear();
+    }
+
+    private static Index ofShared(List<Entry> entries) {
+        Index index = new Index();
+        index.entries = entries;
+        index.sharedEntries = true;
+        return index;
+    }
+
+    private void ensureMutable() {
+        if (sharedEntries) {
+            entries = new ArrayList<>(entries);
+            sharedEntries = false;
+        }
+    }
+
+    /**
+     * 沿用 previous 的 cache tree, 只让有变化的 entry 所在目录失效. 两边的 entries 都需要已排序
+     */
+    public void inheritCacheTree(Index previous) {
+        if (previous == null || previous.getCacheTree().isEmpty()) {
+            return;
+        }
+        CacheTree inherited = previous.getCacheTree().copy();
+        List<Entry> oldEntries = previous.getEntries();
+        int i = 0;
+        int j = 0;
+        while (i < oldEntries.size() || j < entries.size()) {
+            int cmp;
+            if (i == oldEntries.size()) {
+                cmp = 1;
+            } else if (j == entries.size()) {
+                cmp = -1;
+            } else {
+                cmp = oldEntries.get(i).getPath().compareTo(entries.get(j).getPath());
+            }
+            if (cmp < 0) {
+                inherited.invalidate(oldEntries.get(i++).getPath());
+            } else if (cmp > 0) {
+                inherited.invalidate(entries.get(j++).getPath());
+            } else {
+                if (!Objects.equals(oldEntries.get(i).getObjectId(), entries.get(j).getObjectId())) {
+                    inherited.invalidate(entries.get(j).getPath());
+                }
+                i++;
+                j++;
+            }
+        }
+        this.cacheTree = inherited;
+    }
+
     public void upsert(Collection<Entry> entries) {
-        Map<String, Entry> tmpMap = this.entries.stream().collect(Collectors.toMap(Entry::getPath, x -> x, (v1, v2) -> v2));
-        tmpMap.putAll(entries.stream().collect(Collectors.toMap(Entry::getPath, x -> x, (v1, v2) -> v2)));
-        this.entries.clear();
-        this.entries.addAll(tmpMap.values());
-        this.entries.sort(Comparator.comparing(Entry::getPath));
+        sortIfNeeded();
+        for (Entry entry : entries) {
+            upsert(entry);
+        }
+    }
+
+    /**
+     * entries 需要已按 path 排序, 二分查找后原地替换或插入
+     */
+    public void upsert(Entry entry) {
+        ensureMutable();
+        int pos = indexOf(entry.getPath());
+        if (pos >= 0) {
+            Entry old = entries.set(pos, entry);
+            if (!Objects.equals(old.getObjectId(), entry.getObjectId())) {
+                cacheTree.invalidate(entry.getPath());
+            }
+        } else {
+            entries.add(-pos - 1, entry);
+            cacheTree.invalidate(entry.getPath());
+        }
+    }
+
+    public Entry get(String path) {
+        int pos = indexOf(path);
+        return pos >= 0 ? entries.get(pos) : null;
+    }
+
+    /**
+     * 与 {@link Collections#binarySearch(List, Object)} 返回值一致
+     */
+    public int indexOf(String path) {
+        int low = 0;
+        int high = entries.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = entries.get(mid).getPath().compareTo(path);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * path 本身以及 path 目录下的所有 entry, path 为空时返回全部
+     */
+    public List<Entry> entriesUnder(String path) {
+        if (path.isEmpty()) {
+            return new ArrayList<>(entries);
+        }
+        List<Entry> result = new ArrayList<>();
+        String dirPrefix = path + File.separator;
+        int pos = indexOf(path);
+        if (pos >= 0) {
+            result.add(entries.get(pos));
+            pos++;
+        } else {
+            pos = -pos - 1;
+        }
+        // 以 path 为前缀的字符串排序后是连续的, 目录下的 entry 从 path 的位置往后找
+        for (int i = pos; i < entries.size(); i++) {
+            String entryPath = entries.get(i).getPath();
+            if (entryPath.startsWith(dirPrefix)) {
+                result.add(entries.get(i));
+            } else if (!entryPath.startsWith(path)) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    public Map<String, Entry> toPathMap() {
+        Map<String, Entry> map = new HashMap<>(entries.size() * 2);
+        for (Entry entry : entries) {
+            map.put(entry.getPath(), entry);
+        }
+        return map;
+    }
+
+    public boolean remove(String path) {
+        int pos = indexOf(path);
+        if (pos < 0) {
+            return false;
+        }
+        ensureMutable();
+        entries.remove(pos);
+        cacheTree.invalidate(path);
+        return true;
     }
 
     public void remove(Collection<Entry> entries) {
         Set<String> pathsToRemove = entries.stream().map(Entry::getPath).collect(Collectors.toSet());
+        ensureMutable();
         this.entries.removeIf(entry -> pathsToRemove.contains(entry.getPath()));
+        pathsToRemove.forEach(cacheTree::invalidate);
+    }
+
+    public void sortIfNeeded() {
+        for (int i = 1; i < entries.size(); i++) {
+            if (entries.get(i - 1).getPath().compareTo(entries.get(i).getPath()) > 0) {
+                ensureMutable();
+                entries.sort(Comparator.comparing(Entry::getPath));
+                return;
+            }
+        }
     }
 
     @Data
@@ -47,32 +226,94 @@ public class Index {
         private ObjectEntity.Type type;
         private Flag flag = Flag.NONE;
 
+        @EqualsAndHashCode.Exclude
+        private long mtime;
+        @EqualsAndHashCode.Exclude
+        private long ctime;
+        @EqualsAndHashCode.Exclude
+        private long size;
+        @EqualsAndHashCode.Exclude
+        private long inode;
+
+        public void fillStat(FileStat stat) {
+            this.mtime = stat.getMtime();
+            this.ctime = stat.getCtime();
+            this.size = stat.getSize();
+            this.inode = stat.getInode();
+        }
+
+        /**
+         * 同 git: stat 一致则认为内容未变. 但文件修改时间不早于 index 写入时间时 (racy), 可能在同一时间粒度内又被改过, 需要重新 hash
+         */
+        public boolean isStatClean(FileStat stat, long indexMtime) {
+            if (mtime == 0 || objectId == null) {
+                return false;
+            }
+            if (mtime != stat.getMtime() || size != stat.getSize()) {
+                return false;
+            }
+            if (ctime != 0 && ctime != stat.getCtime()) {
+                return false;
+            }
+            if (inode != 0 && inode != stat.getInode()) {
+                return false;
+            }
+            return mtime < indexMtime;
+        }
+
+        public Entry copy() {
+            Entry entry = new Entry();
+            entry.setPath(path);
+            entry.setObjectId(objectId);
+            entry.setType(type);
+            entry.setFlag(flag);
+            entry.setMtime(mtime);
+            entry.setCtime(ctime);
+            entry.setSize(size);
+            entry.setInode(inode);
+            return entry;
+        }
+
         public enum Flag {
             NONE
         }
     }
 
     public static Index generateFromLocalDir(String localDir) throws IOException {
-        Collection<File> files = FileUtil.listChildOnlyFilesWithoutDirOf(localDir, ".git");
+        return generateFromLocalDir(localDir, null);
+    }
+
+    public static Index generateFromLocalDir(String localDir, Index cachedIndex) throws IOException {
+        return generateFromLocalDir(localDir, cachedIndex, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param cachedIndex 上次保存的 index, stat 未变的文件直接复用其中的 objectId
+     */
+    public static Index generateFromLocalDir(String localDir, Index cachedIndex, int parallelism) throws IOException {
+        return generateFromLocalDir(localDir, cachedIndex, null, parallelism);
+    }
+
+    /**
+     * @param sparse 不为空时只扫描 sparse 范围内的文件
+     */
+    public static Index generateFromLocalDir(String localDir, Index cachedIndex, SparseFilter sparse, int parallelism) throws IOException {
+        return generateFromLocalDir(localDir, cachedIndex, null, sparse, parallelism);
+    }
+
+    /**
+     * @param ignoreNode 不为空时跳过被忽略的文件, 不读取和 hash
+     */
+    public static Index generateFromLocalDir(String localDir, Index cachedIndex, IgnoreNode ignoreNode, SparseFilter sparse, int parallelism) throws IOException {
+        WorkTreeScanner scanner = new WorkTreeScanner(localDir, ignoreNode, sparse, parallelism);
         Index index = new Index();
-        List<Entry> entries = index.getEntries();
-        for (File file : files) {
-            Entry entry = new Entry();
-            entry.setPath(PathUtils.getRelativePath(localDir, file.getAbsolutePath()));
-            entry.setObjectId(ObjectUtils.sha1hash(ObjectEntity.Type.blob, file));
-            entries.add(entry);
-        }
-        entries.sort(Comparator.comparing(Entry::getPath));
+        index.setEntries(scanner.scan(cachedIndex, file -> ObjectUtils.sha1hash(ObjectEntity.Type.blob, file)));
         return index;
     }
 
 
     public static Index generateFromIndexFile(File indexFile) throws IOException {
-        byte[] bytes = FileUtils.readFileToByteArray(indexFile);
-        if (bytes != null) {
-            return JsonUtils.readValue(bytes, Index.class);
-        }
-        return null;
+        return IndexManager.parseIndex(indexFile.getPath());
     }
 
 
@@ -87,28 +328,41 @@ public class Index {
         return generateFromCommit(commit, objectManager);
     }
 
-    public static Index generateFromCommit(ObjectEntity commit, ObjectManager objectManager) throws IOException {
-        String commitObjectId = ObjectUtils.sha1hash(commit.getType(), commit.getData());
-        List<Entry> entries;
-
-        List<Entry> fromCache = getBlobFromCache(commitObjectId);
-        if (fromCache != null){
-            entries = fromCache;
-        } else {
-            entries = new ArrayList<>();
-            CommitObjectData commitObjectData = CommitObjectData.parseFrom(commit.getData());
-            walk(commitObjectData.getTree(), "", objectManager, entries);
-            entries.sort(Comparator.comparing(Entry::getPath));
-            putBlobCache(commitObjectId, entries);
+    /**
+     * sparse 不为空时, 不可能包含 sparse 文件的目录不再展开, 以 type 为 tree 的 entry 记录该目录的 tree objectId
+     */
+    public static Index generateFromCommit(String commitObjectId, ObjectManager objectManager, SparseFilter sparse) throws IOException {
+        if (sparse == null) {
+            return generateFromCommit(commitObjectId, objectManager);
         }
-
+        if (commitObjectId == null || Objects.equals(commitObjectId, EMPTY_OBJECT_ID)) {
+            return null;
+        }
+        CommitObjectData commitObjectData = CommitObjectData.parseFrom(objectManager.read(commitObjectId).getData());
+        List<Entry> entries = new ArrayList<>();
+        walk(commitObjectData.getTree(), "", objectManager, entries, sparse);
+        entries.sort(Comparator.comparing(Entry::getPath));
         Index index = new Index();
         index.setEntries(entries);
         return index;
     }
 
+    /**
+     * 返回的 index 和缓存共享 entries, 不要直接修改 {@link #getEntries()} 中的 entry
+     */
+    public static Index generateFromCommit(ObjectEntity commit, ObjectManager objectManager) throws IOException {
+        String commitObjectId = ObjectUtils.sha1hash(commit.getType(), commit.getData());
+        FlattenedTreeCache cache = FlattenedTreeCache.forRepository(objectManager);
+        List<Entry> entries = cache.getBlob(commitObjectId);
+        if (entries == null) {
+            cache.put(commitObjectId, walkTreeAndBlob(commit, objectManager));
+            entries = cache.getBlob(commitObjectId);
+        }
+        return ofShared(entries);
+    }
+
     @SuppressWarnings("DuplicatedCode")
-    private static void walk(String treeObjectId, String parentPath, ObjectManager objectManager, List<Entry> entries) throws IOException {
+    private static void walk(String treeObjectId, String parentPath, ObjectManager objectManager, List<Entry> entries, SparseFilter sparse) throws IOException {
         ObjectEntity tree = objectManager.read(treeObjectId);
         TreeObjectData treeData = TreeObjectData.parseFrom(tree.getData());
         for (TreeObjectData.TreeEntry treeEntry : treeData.getEntries()) {
@@ -120,12 +374,36 @@ public class Index {
                 entries.add(entry);
             }
             if (treeEntry.getType() == ObjectEntity.Type.tree) {
-                walk(treeEntry.getObjectId(), PathUtils.concat(parentPath, treeEntry.getName()), objectManager, entries);
+                String path = PathUtils.concat(parentPath, treeEntry.getName());
+                if (sparse != null && !sparse.mayContain(path)) {
+                    Entry entry = new Entry();
+                    entry.setObjectId(treeEntry.getObjectId());
+                    entry.setPath(path);
+                    entry.setType(ObjectEntity.Type.tree);
+                    entries.add(entry);
+                    continue;
+                }
+                walk(treeEntry.getObjectId(), path, objectManager, entries, sparse);
             }
         }
     }
 
+    /**
+     * sparse checkout 时不展开的目录
+     */
+    public boolean hasTreeEntries() {
+        for (Entry entry : entries) {
+            if (entry.getType() == ObjectEntity.Type.tree) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+
+    /**
+     * @return 根 tree (path 为空) 以及所有 tree 和 blob, 按 path 排序, 不可修改
+     */
     public static List<Entry> generateTreeAndBlobFromCommit(String commitObjectId, ObjectManager objectManager) throws IOException {
         if (commitObjectId == null) {
             return null;
@@ -134,24 +412,25 @@ public class Index {
             return null;
         }
 
-        List<Entry> fromCache = getBlobAndTreeFromCache(commitObjectId);
-        if (fromCache != null){
+        FlattenedTreeCache cache = FlattenedTreeCache.forRepository(objectManager);
+        List<Entry> fromCache = cache.getTreeAndBlob(commitObjectId);
+        if (fromCache != null) {
             return fromCache;
         }
+        cache.put(commitObjectId, walkTreeAndBlob(objectManager.read(commitObjectId), objectManager));
+        return cache.getTreeAndBlob(commitObjectId);
+    }
 
-        ObjectEntity commit = objectManager.read(commitObjectId);
-
-        List<Entry> entries = new ArrayList<>();
+    private static List<Entry> walkTreeAndBlob(ObjectEntity commit, ObjectManager objectManager) throws IOException {
         CommitObjectData commitObjectData = CommitObjectData.parseFrom(commit.getData());
-
         Entry rootTreeEntry = new Entry();
         rootTreeEntry.setObjectId(commitObjectData.getTree());
         rootTreeEntry.setPath("");
         rootTreeEntry.setType(ObjectEntity.Type.tree);
 
+        List<Entry> entries = new ArrayList<>();
         walkTreeAndBlob(rootTreeEntry, objectManager, entries);
         entries.sort(Comparator.comparing(Entry::getPath));
-        putBlobAndTreeCache(commitObjectId, entries);
         return entries;
     }
 
@@ -169,7 +448,6 @@ public class Index {
             Entry entry = new Entry();
             entry.setObjectId(treeEntry.getObjectId());
             entry.setPath(PathUtils.concat(treeEntity.getPath(), treeEntry.getName()));
-            entries.add(entry);
             if (treeEntry.getType() == ObjectEntity.Type.blob) {
                 entry.setType(ObjectEntity.Type.blob);
                 entries.add(entry);
@@ -180,43 +458,4 @@ public class Index {
             }
         }
     }
-
-
-    private static void putBlobCache(String commitObjectId, List<Entry> entries){
-        if (commitObjectId2BlobEntriesCache.size() > CACHE_SIZE){
-            commitObjectId2BlobEntriesCache.entrySet().iterator().remove();
-        }
-        commitObjectId2BlobEntriesCache.put(commitObjectId, entries);
-    }
-
-    private static List<Entry> getBlobFromCache(String commitObjectId){
-        List<Entry> fromBlobCache = commitObjectId2BlobEntriesCache.get(commitObjectId);
-        if (fromBlobCache == null){
-            return collectBlob(getBlobAndTreeFromCache(commitObjectId));
-        }
-        return new ArrayList<>(fromBlobCache);
-    }
-
-    private static void putBlobAndTreeCache(String commitObjectId, List<Entry> entries){
-        if (commitObjectId2BlobAndTreeEntriesCache.size() > CACHE_SIZE){
-            commitObjectId2BlobAndTreeEntriesCache.entrySet().iterator().remove();
-        }
-        commitObjectId2BlobAndTreeEntriesCache.put(commitObjectId, entries);
-    }
-
-    private static List<Entry> getBlobAndTreeFromCache(String commitObjectId){
-        List<Entry> fromBlobAndTreeCache = commitObjectId2BlobAndTreeEntriesCache.get(commitObjectId);
-        if (fromBlobAndTreeCache == null){
-            return null;
-        }
-        return new ArrayList<>(fromBlobAndTreeCache);
-    }
-
-    private static List<Entry> collectBlob(List<Entry> blobAndTrees){
-        if (blobAndTrees == null){
-            return null;
-        }else{
-            return blobAndTrees.stream().filter(x -> x.getType() == ObjectEntity.Type.blob).collect(Collectors.toList());
-        }
-    }
 }
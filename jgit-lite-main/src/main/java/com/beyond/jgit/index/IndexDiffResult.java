@@ -12,6 +12,11 @@ public class IndexDiffResult {
     private Set<Index.Entry> removed = new HashSet<>();
     private Set<Index.Entry> updated = new HashSet<>();
 
+    /**
+     * 由 {@link TreeDiffer} 填充: 和 base 不同的 tree objectId
+     */
+    private Set<String> changedTreeObjectIds = new HashSet<>();
+
     public boolean isChanged() {
         return CollectionUtils.isNotEmpty(added) || CollectionUtils.isNotEmpty(removed) || CollectionUtils.isNotEmpty(updated);
     }
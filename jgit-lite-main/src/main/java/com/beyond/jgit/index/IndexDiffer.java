@@ -30,8 +30,8 @@ public class IndexDiffer {
         Set<Index.Entry> removed = result.getRemoved();
         Set<Index.Entry> updated = result.getUpdated();
 
-        List<Index.Entry> entries = index.getEntries().stream().sorted(Comparator.comparing(Index.Entry::getPath)).collect(Collectors.toList());
-        List<Index.Entry> baseEntries = base.getEntries().stream().sorted(Comparator.comparing(Index.Entry::getPath)).collect(Collectors.toList());
+        List<Index.Entry> entries = sorted(index.getEntries());
+        List<Index.Entry> baseEntries = sorted(base.getEntries());
 
         int leftIndex = 0;
         int rightIndex = 0;
@@ -71,4 +71,16 @@ public class IndexDiffer {
 
         return result;
     }
+
+    /**
+     * 从 commit 或 index 文件得到的 entries 已经有序, 不再复制排序
+     */
+    private static List<Index.Entry> sorted(List<Index.Entry> entries) {
+        for (int i = 1; i < entries.size(); i++) {
+            if (entries.get(i - 1).getPath().compareTo(entries.get(i).getPath()) > 0) {
+                return entries.stream().sorted(Comparator.comparing(Index.Entry::getPath)).collect(Collectors.toList());
+            }
+        }
+        return entries;
+    }
 }
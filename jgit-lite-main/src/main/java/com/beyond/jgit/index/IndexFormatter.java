@@ -0,0 +1,261 @@
+package com.beyond.jgit.index;
+
+import com.beyond.jgit.object.ObjectEntity;
+import com.beyond.jgit.util.FormatUtils;
+import com.beyond.jgit.util.ObjectUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * index 二进制格式
+ * <pre>
+ * header:    "JGIX" | version(4) | entryCount(4)
+ * entry:     mtime(8) | ctime(8) | size(8) | inode(8) | objectId(20) | type(1) | flag(1)
+ *            | sharedPrefixLength(dynamic) | suffixLength(dynamic) | suffix(utf-8)
+ * extension: signature(4) | length(4) | data, 目前只有 {@link CacheTree}
+ * trailer:   sha1(20)
+ * </pre>
+ * entry 按 path 排序, path 只存与上一条不同的后缀.
+ */
+public class IndexFormatter {
+
+    public static final byte[] MAGIC = new byte[]{'J', 'G', 'I', 'X'};
+    public static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int CHECKSUM_LENGTH = 20;
+
+    /**
+     * 超过这个大小才 mmap
+     */
+    private static final long MAP_THRESHOLD = 32 * 1024 * 1024;
+
+    public static byte[] format(Index index) throws IOException {
+        List<Index.Entry> entries = index.getEntries();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(HEADER_LENGTH + entries.size() * 80 + CHECKSUM_LENGTH);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+
+        byte[] tmp = new byte[5];
+        byte[] lastPath = new byte[0];
+        for (Index.Entry entry : entries) {
+            out.writeLong(entry.getMtime());
+            out.writeLong(entry.getCtime());
+            out.writeLong(entry.getSize());
+            out.writeLong(entry.getInode());
+            out.write(ObjectUtils.hexToByteArray(entry.getObjectId()));
+            out.writeByte(entry.getType() == null ? 0 : entry.getType().getVal());
+            out.writeByte(entry.getFlag() == null ? 0 : entry.getFlag().ordinal());
+
+            byte[] path = entry.getPath().getBytes(StandardCharsets.UTF_8);
+            int shared = sharedPrefixLength(lastPath, path);
+            out.write(tmp, 0, FormatUtils.dynamicAddInt(shared, tmp, 0));
+            out.write(tmp, 0, FormatUtils.dynamicAddInt(path.length - shared, tmp, 0));
+            out.write(path, shared, path.length - shared);
+            lastPath = path;
+        }
+
+        if (!index.getCacheTree().isEmpty()) {
+            byte[] data = index.getCacheTree().toBytes();
+            out.write(CacheTree.SIGNATURE);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        out.flush();
+        byte[] body = bos.toByteArray();
+        byte[] result = Arrays.copyOf(body, body.length + CHECKSUM_LENGTH);
+        FormatUtils.writeBytesTo(sha1(ByteBuffer.wrap(body)), result, body.length);
+        return result;
+    }
+
+    /**
+     * 普通大小的 index 读到堆上. 很大时才 mmap, 解析完 entry 都已复制出来, 立即释放映射.
+     * windows 上映射还在时不能用 move 替换 index 文件, 不能等 GC
+     */
+    public static Index parse(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size <= MAP_THRESHOLD) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new EOFException("index truncated: " + file);
+                    }
+                }
+                buffer.flip();
+                return parse(buffer);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            try {
+                return parse(buffer);
+            } finally {
+                unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * java 9+ 用 Unsafe.invokeCleaner, java 8 用 DirectByteBuffer.cleaner(). 都失败时只能等 GC
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (NoSuchMethodException e) {
+            // java 8
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return;
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+        }
+    }
+
+    public static Index parse(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (length < HEADER_LENGTH + CHECKSUM_LENGTH) {
+            throw new IOException("index too short");
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.limit(body.position() + length - CHECKSUM_LENGTH);
+        byte[] checksum = new byte[CHECKSUM_LENGTH];
+        ByteBuffer trailer = buffer.duplicate();
+        trailer.position(trailer.position() + length - CHECKSUM_LENGTH);
+        trailer.get(checksum);
+        if (!Arrays.equals(sha1(body.duplicate()), checksum)) {
+            throw new IOException("index checksum error");
+        }
+
+        byte[] magic = new byte[4];
+        body.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a index file");
+        }
+        int version = body.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported index version: " + version);
+        }
+        int count = body.getInt();
+
+        Index index = new Index();
+        List<Index.Entry> entries = new ArrayList<>(count);
+        byte[] objectId = new byte[20];
+        byte[] path = new byte[256];
+        int pathLength = 0;
+        Index.Entry.Flag[] flags = Index.Entry.Flag.values();
+        for (int i = 0; i < count; i++) {
+            Index.Entry entry = new Index.Entry();
+            entry.setMtime(body.getLong());
+            entry.setCtime(body.getLong());
+            entry.setSize(body.getLong());
+            entry.setInode(body.getLong());
+            body.get(objectId);
+            entry.setObjectId(ObjectUtils.bytesToHex(objectId));
+            int type = body.get();
+            entry.setType(type == 0 ? null : ObjectEntity.Type.of(type));
+            entry.setFlag(flags[body.get()]);
+
+            int shared = readDynamicInt(body);
+            int suffix = readDynamicInt(body);
+            if (shared > pathLength) {
+                throw new IOException("index path error");
+            }
+            if (shared + suffix > path.length) {
+                path = Arrays.copyOf(path, Math.max(path.length * 2, shared + suffix));
+            }
+            body.get(path, shared, suffix);
+            pathLength = shared + suffix;
+            entry.setPath(new String(path, 0, pathLength, StandardCharsets.UTF_8));
+            entries.add(entry);
+        }
+        index.setEntries(entries);
+
+        // 不认识的扩展直接跳过
+        while (body.hasRemaining()) {
+            byte[] signature = new byte[4];
+            body.get(signature);
+            int extensionLength = body.getInt();
+            int extensionEnd = body.position() + extensionLength;
+            if (Arrays.equals(signature, CacheTree.SIGNATURE)) {
+                ByteBuffer data = body.duplicate();
+                data.limit(extensionEnd);
+                index.setCacheTree(CacheTree.parse(data));
+            }
+            body.position(extensionEnd);
+        }
+        return index;
+    }
+
+    public static boolean isBinaryIndex(File file) throws IOException {
+        if (file.length() < HEADER_LENGTH) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] magic = new byte[4];
+            raf.readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        }
+    }
+
+    /**
+     * 与 {@link FormatUtils#readNextDynamicInt(byte[], int)} 相同的编码
+     */
+    private static int readDynamicInt(ByteBuffer buffer) {
+        int result = 0;
+        for (int i = 0; ; i++) {
+            byte b = buffer.get();
+            result += (b & 0x7f) << (i * 7);
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private static int sharedPrefixLength(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < len && a[i] == b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static byte[] sha1(ByteBuffer buffer) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(buffer);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
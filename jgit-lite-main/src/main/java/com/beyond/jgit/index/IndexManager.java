@@ -11,7 +11,10 @@ import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.stream.Collectors;
 import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
@@ -22,12 +25,34 @@ public class IndexManager {
     private String indexPath;
 
     public IndexManager(String indexPath) {
-        this.indexPath = indexPath;
+        this.indexPath = resolveIndexPath(indexPath);
     }
 
     public void appendTo(Index.Entry entry) throws IOException {
-        Index index = parseIndex(indexPath);
-        save(index);
+        update(Collections.singletonList(entry), Collections.emptyList());
+    }
+
+    /**
+     * 在当前 index 上增改 upserts, 删除 removedPaths, 其他 entry 保持不变
+     */
+    public Index update(Collection<Index.Entry> upserts, Collection<String> removedPaths) throws IOException {
+        if (!tryLock()) {
+            throw new IOException("lock failed");
+        }
+        try {
+            Index index = parseIndex(indexPath);
+            if (index == null) {
+                index = new Index();
+            }
+            index.upsert(upserts);
+            for (String path : removedPaths) {
+                index.remove(path);
+            }
+            write(index);
+            return index;
+        } finally {
+            unlock();
+        }
     }
 
     public boolean tryLock() throws IOException {
@@ -71,24 +96,105 @@ public class IndexManager {
         if (CollectionUtils.isEmpty(index.getEntries())){
             return;
         }
-        index.getEntries().sort(Comparator.comparing(Index.Entry::getPath));
+        index.sortIfNeeded();
         if (tryLock()) {
-            File lockFile = new File(indexPath + ".lock");
-            byte[] bytes = JsonUtils.writeValueAsBytes(index);
-            if (bytes != null) {
-                FileUtils.writeByteArrayToFile(lockFile, bytes);
-                Files.move(toPath(lockFile), toPath(new File(indexPath)), StandardCopyOption.ATOMIC_MOVE);
+            try {
+                write(index);
+            } finally {
+                unlock();
             }
             return;
         }
         throw new IOException("lock failed");
     }
 
+    /**
+     * 需要已经拿到锁
+     */
+    private void write(Index index) throws IOException {
+        File lockFile = new File(indexPath + ".lock");
+        FileUtils.writeByteArrayToFile(lockFile, IndexFormatter.format(index));
+        // 和写出的 index 文件的 mtime 比较, 精度和文件系统一致 (可能是 1s 或 2s)
+        if (smudgeRacyEntries(index, lockFile.lastModified())) {
+            FileUtils.writeByteArrayToFile(lockFile, IndexFormatter.format(index));
+        }
+        index.setIndexMtime(lockFile.lastModified());
+        Files.move(toPath(lockFile), toPath(new File(indexPath)), StandardCopyOption.ATOMIC_MOVE);
+        // 迁移时没拿到锁留下的 json
+        File jsonFile = new File(indexPath + ".json");
+        if (jsonFile.exists()) {
+            FileUtils.deleteQuietly(jsonFile);
+        }
+    }
+
+    /**
+     * 和 index 同一时刻被修改的文件, 之后再改也可能 stat 不变, 清掉 mtime 让下次重新算 hash
+     */
+    private static boolean smudgeRacyEntries(Index index, long indexMtime) {
+        boolean smudged = false;
+        for (Index.Entry entry : index.getEntries()) {
+            if (entry.getMtime() >= indexMtime) {
+                entry.setMtime(0);
+                smudged = true;
+            }
+        }
+        return smudged;
+    }
+
     public static Index parseIndex(String indexPath) throws IOException {
-        File indexFile = new File(indexPath);
-        if (!indexFile.exists()){
+        File indexFile = new File(resolveIndexPath(indexPath));
+        if (!indexFile.exists()) {
+            return migrateJsonIndex(indexFile);
+        }
+        Index index = IndexFormatter.parse(indexFile);
+        index.setIndexMtime(indexFile.lastModified());
+        return index;
+    }
+
+    /**
+     * 老版本的 index 是 index.json, 第一次读到时转成二进制格式
+     */
+    private static Index migrateJsonIndex(File indexFile) throws IOException {
+        File jsonFile = new File(indexFile.getPath() + ".json");
+        if (!jsonFile.exists()) {
             return null;
         }
-        return JsonUtils.readValue(FileUtils.readFileToByteArray(indexFile), Index.class);
+        Index index = JsonUtils.readValue(FileUtils.readFileToByteArray(jsonFile), Index.class);
+        if (index == null) {
+            return null;
+        }
+        index.setIndexMtime(jsonFile.lastModified());
+        if (CollectionUtils.isEmpty(index.getEntries())) {
+            return index;
+        }
+
+        File lockFile = new File(indexFile.getPath() + ".lock");
+        if (!lockFile.createNewFile()) {
+            // 正在被其他进程写, 这次先用 json 里的内容
+            return index;
+        }
+        try {
+            Index toWrite = new Index();
+            toWrite.setEntries(index.getEntries().stream().map(Index.Entry::copy).sorted(Comparator.comparing(Index.Entry::getPath)).collect(Collectors.toList()));
+            // json 里的 stat 是基于 json 文件的时间, 换了文件之后不再可信
+            smudgeRacyEntries(toWrite, jsonFile.lastModified());
+            FileUtils.writeByteArrayToFile(lockFile, IndexFormatter.format(toWrite));
+            Files.move(lockFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtils.deleteQuietly(lockFile);
+        }
+        FileUtils.deleteQuietly(jsonFile);
+        log.info("index migrated: {} -> {}", jsonFile, indexFile);
+        return index;
+    }
+
+    /**
+     * 配置里还是 index.json 的, 指向同目录下的二进制 index
+     */
+    public static String resolveIndexPath(String indexPath) {
+        if (indexPath.endsWith(".json")) {
+            return indexPath.substring(0, indexPath.length() - ".json".length());
+        }
+        return indexPath;
     }
 }
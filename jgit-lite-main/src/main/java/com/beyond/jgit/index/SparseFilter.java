@@ -0,0 +1,120 @@
+package com.beyond.jgit.index;
+
+import com.beyond.jgit.ignore.IgnoreNode;
+import org.apache.commons.collections4.CollectionUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * sparse checkout 的路径过滤, pattern 语法和 .gitignore 相同, 匹配上的路径才会出现在工作区.
+ * <p>
+ * {@link #mayContain(String)} 判断目录下是否可能有需要的文件, 不可能时整个目录不用展开.
+ */
+public class SparseFilter {
+
+    private final IgnoreNode node;
+
+    /**
+     * 每条非 ! 规则开头不含通配符的目录部分, null 表示可能匹配任意深度
+     */
+    private final List<String> literalPrefixes = new ArrayList<>();
+
+    private SparseFilter(List<String> patterns) throws IOException {
+        this.node = new IgnoreNode();
+        node.parse(new ByteArrayInputStream(String.join("\n", patterns).getBytes(StandardCharsets.UTF_8)));
+        for (String pattern : patterns) {
+            String trimmed = pattern.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.startsWith("!")) {
+                continue;
+            }
+            literalPrefixes.add(literalPrefix(trimmed));
+        }
+    }
+
+    /**
+     * 没有配置 pattern 时返回 null, 表示不启用 sparse
+     */
+    public static SparseFilter of(List<String> patterns) {
+        if (CollectionUtils.isEmpty(patterns)) {
+            return null;
+        }
+        try {
+            return new SparseFilter(patterns);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 文件是否在 sparse 范围内, 文件本身没有匹配的规则时看上级目录
+     */
+    public boolean isIncluded(String path) {
+        return isIncluded(normalize(path), false);
+    }
+
+    private boolean isIncluded(String current, boolean isDirectory) {
+        for (; ; ) {
+            Boolean result = node.checkIgnored(current, isDirectory);
+            if (result != null) {
+                return result;
+            }
+            int index = current.lastIndexOf('/');
+            if (index < 0) {
+                return false;
+            }
+            current = current.substring(0, index);
+            isDirectory = true;
+        }
+    }
+
+    /**
+     * 目录下是否可能有 sparse 范围内的文件, 宁可多算
+     */
+    public boolean mayContain(String dir) {
+        String normalized = normalize(dir);
+        Boolean result = node.checkIgnored(normalized, true);
+        if (result != null) {
+            return result;
+        }
+        for (String prefix : literalPrefixes) {
+            if (prefix == null || prefix.equals(normalized)
+                    || prefix.startsWith(normalized + "/") || normalized.startsWith(prefix + "/")) {
+                return true;
+            }
+        }
+        // 上级目录整体被包含
+        int index = normalized.lastIndexOf('/');
+        return index > 0 && isIncluded(normalized.substring(0, index), true);
+    }
+
+    private static String literalPrefix(String pattern) {
+        String p = pattern.startsWith("/") ? pattern.substring(1) : pattern;
+        if (p.endsWith("/")) {
+            p = p.substring(0, p.length() - 1);
+        }
+        if (!pattern.startsWith("/") && p.indexOf('/') < 0) {
+            // 不以 / 开头且只有名字的 pattern 可以匹配任意目录下的文件
+            return null;
+        }
+        StringBuilder prefix = new StringBuilder();
+        for (String segment : p.split("/")) {
+            if (segment.isEmpty() || segment.matches(".*[*?\\[\\\\].*")) {
+                break;
+            }
+            if (prefix.length() > 0) {
+                prefix.append('/');
+            }
+            prefix.append(segment);
+        }
+        return prefix.length() == 0 ? null : prefix.toString();
+    }
+
+    private static String normalize(String path) {
+        return File.separatorChar == '/' ? path : path.replace(File.separatorChar, '/');
+    }
+}
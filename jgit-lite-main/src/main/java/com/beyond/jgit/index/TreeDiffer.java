@@ -0,0 +1,203 @@
+package com.beyond.jgit.index;
+
+import com.beyond.jgit.object.ObjectEntity;
+import com.beyond.jgit.object.ObjectManager;
+import com.beyond.jgit.object.data.CommitObjectData;
+import com.beyond.jgit.object.data.TreeObjectData;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static com.beyond.jgit.GitLite.EMPTY_OBJECT_ID;
+
+/**
+ * 直接比较 commit 的 tree, 多棵 tree 按 name 同步向下遍历, objectId 相同的子树整个跳过.
+ * <p>
+ * 结果和把 commit 展开成 {@link Index} 后用 {@link IndexDiffer} 比较一致, 但只读取有变化的 tree.
+ * 另外会记录每一边和 base 不同的 tree objectId, 包括根 tree.
+ */
+public class TreeDiffer {
+
+    private final ObjectManager objectManager;
+    private final SparseFilter sparse;
+    private final IndexDiffResult[] results;
+
+    /**
+     * 本次遍历中读过的 tree, 多边相同的子树只解析一次
+     */
+    private final Map<String, List<TreeObjectData.TreeEntry>> treeCache = new HashMap<>();
+
+    private TreeDiffer(ObjectManager objectManager, SparseFilter sparse, int sides) {
+        this.objectManager = objectManager;
+        this.sparse = sparse;
+        this.results = new IndexDiffResult[sides];
+        for (int i = 0; i < sides; i++) {
+            results[i] = new IndexDiffResult();
+        }
+    }
+
+    /**
+     * commit 相对 baseCommit 的变化, 两者都可以为空
+     */
+    public static IndexDiffResult diff(String commitObjectId, String baseCommitObjectId, ObjectManager objectManager) throws IOException {
+        return diff(commitObjectId, baseCommitObjectId, objectManager, null);
+    }
+
+    /**
+     * @param sparse 不为空时范围外的目录不展开, 和 {@link Index#generateFromCommit(String, ObjectManager, SparseFilter)} 一样以 tree entry 比较
+     */
+    public static IndexDiffResult diff(String commitObjectId, String baseCommitObjectId, ObjectManager objectManager, SparseFilter sparse) throws IOException {
+        TreeDiffer differ = new TreeDiffer(objectManager, sparse, 1);
+        differ.walkRoot(baseCommitObjectId, commitObjectId);
+        return differ.results[0];
+    }
+
+    /**
+     * 三方比较, 一次遍历得到 ours 和 theirs 各自相对 base 的变化
+     *
+     * @return [ours 相对 base, theirs 相对 base]
+     */
+    public static IndexDiffResult[] diff3(String oursCommitObjectId, String theirsCommitObjectId, String baseCommitObjectId,
+                                          ObjectManager objectManager, SparseFilter sparse) throws IOException {
+        TreeDiffer differ = new TreeDiffer(objectManager, sparse, 2);
+        differ.walkRoot(baseCommitObjectId, oursCommitObjectId, theirsCommitObjectId);
+        return differ.results;
+    }
+
+    private void walkRoot(String baseCommitObjectId, String... commitObjectIds) throws IOException {
+        String[] treeIds = new String[commitObjectIds.length + 1];
+        treeIds[0] = treeOf(baseCommitObjectId);
+        for (int i = 0; i < commitObjectIds.length; i++) {
+            treeIds[i + 1] = treeOf(commitObjectIds[i]);
+            if (treeIds[i + 1] != null && !treeIds[i + 1].equals(treeIds[0])) {
+                results[i].getChangedTreeObjectIds().add(treeIds[i + 1]);
+            }
+        }
+        if (!allEquals(treeIds)) {
+            walk("", treeIds);
+        }
+    }
+
+    private String treeOf(String commitObjectId) throws IOException {
+        if (commitObjectId == null || Objects.equals(commitObjectId, EMPTY_OBJECT_ID)) {
+            return null;
+        }
+        return CommitObjectData.parseFrom(objectManager.read(commitObjectId).getData()).getTree();
+    }
+
+    /**
+     * @param treeIds 下标 0 是 base, 为空表示这一边没有该目录
+     */
+    private void walk(String dir, String[] treeIds) throws IOException {
+        int n = treeIds.length;
+        List<List<TreeObjectData.TreeEntry>> trees = new ArrayList<>(n);
+        int[] cursors = new int[n];
+        for (String treeId : treeIds) {
+            trees.add(treeId == null ? Collections.emptyList() : readTree(treeId));
+        }
+
+        TreeObjectData.TreeEntry[] current = new TreeObjectData.TreeEntry[n];
+        for (; ; ) {
+            // 各边游标处最小的 name
+            String name = null;
+            for (int i = 0; i < n; i++) {
+                if (cursors[i] < trees.get(i).size()) {
+                    String candidate = trees.get(i).get(cursors[i]).getName();
+                    if (name == null || candidate.compareTo(name) < 0) {
+                        name = candidate;
+                    }
+                }
+            }
+            if (name == null) {
+                return;
+            }
+            for (int i = 0; i < n; i++) {
+                List<TreeObjectData.TreeEntry> tree = trees.get(i);
+                if (cursors[i] < tree.size() && tree.get(cursors[i]).getName().equals(name)) {
+                    current[i] = tree.get(cursors[i]++);
+                } else {
+                    current[i] = null;
+                }
+            }
+            compare(dir.isEmpty() ? name : dir + File.separator + name, current);
+        }
+    }
+
+    private void compare(String path, TreeObjectData.TreeEntry[] current) throws IOException {
+        int n = current.length;
+        String[] blobIds = new String[n];
+        String[] subTreeIds = new String[n];
+        for (int i = 0; i < n; i++) {
+            if (current[i] == null) {
+                continue;
+            }
+            if (current[i].getType() == ObjectEntity.Type.tree) {
+                subTreeIds[i] = current[i].getObjectId();
+            } else {
+                blobIds[i] = current[i].getObjectId();
+            }
+        }
+
+        compareLeaf(path, ObjectEntity.Type.blob, blobIds);
+        if (allEquals(subTreeIds)) {
+            return;
+        }
+        if (sparse != null && !sparse.mayContain(path)) {
+            compareLeaf(path, ObjectEntity.Type.tree, subTreeIds);
+            return;
+        }
+        for (int i = 1; i < n; i++) {
+            if (subTreeIds[i] != null && !subTreeIds[i].equals(subTreeIds[0])) {
+                results[i - 1].getChangedTreeObjectIds().add(subTreeIds[i]);
+            }
+        }
+        walk(path, subTreeIds);
+    }
+
+    private void compareLeaf(String path, ObjectEntity.Type type, String[] objectIds) {
+        String baseId = objectIds[0];
+        for (int i = 1; i < objectIds.length; i++) {
+            String objectId = objectIds[i];
+            if (Objects.equals(objectId, baseId)) {
+                continue;
+            }
+            IndexDiffResult result = results[i - 1];
+            if (baseId == null) {
+                result.getAdded().add(entry(path, type, objectId));
+            } else if (objectId == null) {
+                result.getRemoved().add(entry(path, type, baseId));
+            } else {
+                result.getUpdated().add(entry(path, type, objectId));
+            }
+        }
+    }
+
+    private List<TreeObjectData.TreeEntry> readTree(String treeObjectId) throws IOException {
+        List<TreeObjectData.TreeEntry> entries = treeCache.get(treeObjectId);
+        if (entries == null) {
+            entries = TreeObjectData.parseFrom(objectManager.read(treeObjectId).getData()).getEntries();
+            // 同步遍历要求按 name 有序, 新生成的 tree 本身已排序
+            entries.sort(Comparator.comparing(TreeObjectData.TreeEntry::getName));
+            treeCache.put(treeObjectId, entries);
+        }
+        return entries;
+    }
+
+    private static Index.Entry entry(String path, ObjectEntity.Type type, String objectId) {
+        Index.Entry entry = new Index.Entry();
+        entry.setPath(path);
+        entry.setType(type);
+        entry.setObjectId(objectId);
+        return entry;
+    }
+
+    private static boolean allEquals(String[] ids) {
+        for (int i = 1; i < ids.length; i++) {
+            if (!Objects.equals(ids[i], ids[0])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,226 @@
+package com.beyond.jgit.index;
+
+import com.beyond.jgit.ignore.FastIgnoreRule;
+import com.beyond.jgit.ignore.IgnoreNode;
+import com.beyond.jgit.util.PathUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 并行扫描工作区并计算 objectId.
+ * <p>
+ * 每个目录一个 fork/join 任务, 子目录和成批的文件再拆成子任务, 由 ForkJoinPool 做 work-stealing.
+ * stat 未变的文件直接复用 cachedIndex 中的 objectId, 其余交给 {@link Hasher}. 结果按 path 排序.
+ */
+@Slf4j
+public class WorkTreeScanner {
+
+    /**
+     * 一个任务里顺序处理的文件数
+     */
+    private static final int FILE_BATCH_SIZE = 16;
+
+    private static final Set<String> EXCLUDE_NAMES = Collections.singleton(".git");
+
+    public interface Hasher {
+        String hash(File file) throws IOException;
+    }
+
+    private final String localDir;
+    private final IgnoreNode ignoreNode;
+    private final SparseFilter sparse;
+    private final int parallelism;
+
+    /**
+     * 有 ! 规则时被忽略的目录下面的文件仍可能被重新包含, 不能整棵剪掉
+     */
+    private final boolean pruneIgnoredDirs;
+
+    public WorkTreeScanner(String localDir, IgnoreNode ignoreNode, int parallelism) {
+        this(localDir, ignoreNode, null, parallelism);
+    }
+
+    /**
+     * @param sparse 不为空时只扫描 sparse 范围内的文件
+     */
+    public WorkTreeScanner(String localDir, IgnoreNode ignoreNode, SparseFilter sparse, int parallelism) {
+        this.localDir = localDir;
+        this.ignoreNode = ignoreNode;
+        this.sparse = sparse;
+        this.parallelism = Math.max(1, parallelism);
+        this.pruneIgnoredDirs = ignoreNode == null || ignoreNode.getRules().stream().noneMatch(FastIgnoreRule::getNegation);
+    }
+
+    public List<Index.Entry> scan(Index cachedIndex, Hasher hasher) throws IOException {
+        return scan(Collections.singletonList(new File(localDir)), cachedIndex, hasher);
+    }
+
+    /**
+     * @param starts 要扫描的文件或目录, 都在 localDir 之下
+     */
+    public List<Index.Entry> scan(Collection<File> starts, Index cachedIndex, Hasher hasher) throws IOException {
+        Map<String, Index.Entry> cachedEntries = cachedIndex == null ? Collections.emptyMap() : cachedIndex.toPathMap();
+        long indexMtime = cachedIndex == null ? 0 : cachedIndex.getIndexMtime();
+        Context context = new Context(cachedEntries, indexMtime, hasher);
+
+        File root = new File(localDir);
+        List<ForkJoinTask<List<Index.Entry>>> tasks = new ArrayList<>();
+        for (File start : starts) {
+            if (!start.exists() || EXCLUDE_NAMES.contains(start.getName())) {
+                continue;
+            }
+            boolean ignored = ignoreNode != null && IgnoreNode.isIgnored(ignoreNode, start, root);
+            String relativePath = start.equals(root) ? "" : PathUtils.getRelativePath(localDir, start.getAbsolutePath());
+            if (start.isDirectory()) {
+                tasks.add(new DirTask(context, start, relativePath, ignored));
+            } else if (!ignored && (sparse == null || sparse.isIncluded(relativePath))) {
+                tasks.add(new FileTask(context, Collections.singletonList(start), Collections.singletonList(relativePath)));
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        TreeMap<String, Index.Entry> result = new TreeMap<>();
+        try {
+            for (ForkJoinTask<List<Index.Entry>> task : tasks) {
+                pool.execute(task);
+            }
+            for (ForkJoinTask<List<Index.Entry>> task : tasks) {
+                for (Index.Entry entry : task.join()) {
+                    result.put(entry.getPath(), entry);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        log.debug("scan {} files, hashed {}, cost {}ms", result.size(), context.hashedCount, System.currentTimeMillis() - startTime);
+        return new ArrayList<>(result.values());
+    }
+
+    private static class Context {
+        private final Map<String, Index.Entry> cachedEntries;
+        private final long indexMtime;
+        private final Hasher hasher;
+        private final AtomicInteger hashedCount = new AtomicInteger();
+
+        private Context(Map<String, Index.Entry> cachedEntries, long indexMtime, Hasher hasher) {
+            this.cachedEntries = cachedEntries;
+            this.indexMtime = indexMtime;
+            this.hasher = hasher;
+        }
+    }
+
+    private class DirTask extends RecursiveTask<List<Index.Entry>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Context context;
+        private final File dir;
+        private final String relativePath;
+        private final boolean ignored;
+
+        private DirTask(Context context, File dir, String relativePath, boolean ignored) {
+            this.context = context;
+            this.dir = dir;
+            this.relativePath = relativePath;
+            this.ignored = ignored;
+        }
+
+        @Override
+        protected List<Index.Entry> compute() {
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return Collections.emptyList();
+            }
+            List<ForkJoinTask<List<Index.Entry>>> subTasks = new ArrayList<>();
+            List<File> files = new ArrayList<>();
+            List<String> paths = new ArrayList<>();
+            for (File child : children) {
+                if (EXCLUDE_NAMES.contains(child.getName())) {
+                    continue;
+                }
+                String childPath = relativePath.isEmpty() ? child.getName() : relativePath + File.separator + child.getName();
+                boolean isDirectory = child.isDirectory();
+                boolean childIgnored = isIgnored(childPath, isDirectory, ignored);
+                if (isDirectory) {
+                    if ((childIgnored && pruneIgnoredDirs) || (sparse != null && !sparse.mayContain(childPath))) {
+                        continue;
+                    }
+                    subTasks.add(new DirTask(context, child, childPath, childIgnored).fork());
+                } else if (!childIgnored && (sparse == null || sparse.isIncluded(childPath))) {
+                    files.add(child);
+                    paths.add(childPath);
+                    if (files.size() == FILE_BATCH_SIZE) {
+                        subTasks.add(new FileTask(context, files, paths).fork());
+                        files = new ArrayList<>();
+                        paths = new ArrayList<>();
+                    }
+                }
+            }
+            List<Index.Entry> entries = new FileTask(context, files, paths).compute();
+            for (ForkJoinTask<List<Index.Entry>> subTask : subTasks) {
+                entries.addAll(subTask.join());
+            }
+            return entries;
+        }
+    }
+
+    private boolean isIgnored(String path, boolean isDirectory, boolean parentIgnored) {
+        if (ignoreNode == null) {
+            return false;
+        }
+        IgnoreNode.MatchResult matchResult = ignoreNode.isIgnored(path, isDirectory);
+        if (matchResult == IgnoreNode.MatchResult.CHECK_PARENT) {
+            return parentIgnored;
+        }
+        return matchResult == IgnoreNode.MatchResult.IGNORED;
+    }
+
+    private static class FileTask extends RecursiveTask<List<Index.Entry>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Context context;
+        private final List<File> files;
+        private final List<String> paths;
+
+        private FileTask(Context context, List<File> files, List<String> paths) {
+            this.context = context;
+            this.files = files;
+            this.paths = paths;
+        }
+
+        @Override
+        protected List<Index.Entry> compute() {
+            List<Index.Entry> entries = new ArrayList<>(files.size());
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    File file = files.get(i);
+                    Index.Entry entry = new Index.Entry();
+                    entry.setPath(paths.get(i));
+                    FileStat stat = FileStat.of(file);
+                    Index.Entry cached = context.cachedEntries.get(entry.getPath());
+                    if (cached != null && cached.isStatClean(stat, context.indexMtime)) {
+                        entry.setObjectId(cached.getObjectId());
+                    } else {
+                        entry.setObjectId(context.hasher.hash(file));
+                        context.hashedCount.incrementAndGet();
+                    }
+                    entry.fillStat(stat);
+                    entries.add(entry);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package com.beyond.jgit.index;
+
+import com.beyond.jgit.ignore.IgnoreNode;
+import com.beyond.jgit.object.ObjectEntity;
+import com.beyond.jgit.util.ObjectUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * 监听工作区变化, 记录变化过的路径.
+ * <p>
+ * {@link #snapshot(Index)} 第一次做全量扫描, 之后只重新扫描变化过的路径并更新上次的结果.
+ * 事件是异步送达的, 每次 snapshot 先在 .git 下建一个标记文件, 等到它的事件送达, 之前的事件也就都送达了.
+ * 另外只 stat 上次扫描时 mtime 还在 racy 时间内的文件.
+ * 轮询实现的 WatchService 事件没有顺序, 没有 .git 目录时也没法放标记文件, 这两种情况每次 stat 上次结果中的所有文件和目录.
+ * 事件溢出, 注册目录失败, 标记事件等待超时或者 ignore 规则变了时回退到全量扫描.
+ */
+@Slf4j
+public class WorkTreeWatcher implements Closeable {
+
+    private static final String GIT_DIR_NAME = ".git";
+
+    /**
+     * mtime 在上次扫描前这段时间内的文件和目录可能在同一时间粒度内又被改过, 总是重新检查
+     */
+    private static final long RACY_MILLIS = 2000;
+
+    private static final String SYNC_MARKER_PREFIX = "watch-sync-";
+
+    private static final long SYNC_TIMEOUT_MILLIS = 2000;
+
+    private final String localDir;
+    private final Path root;
+    private final int parallelism;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchKeys = new ConcurrentHashMap<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * 后台线程和 snapshot 处理事件互斥, 保证 snapshot 时取走的 key 都已经处理完
+     */
+    private final Object eventLock = new Object();
+
+    private final Object dirtyLock = new Object();
+    private Set<String> dirtyPaths = new HashSet<>();
+    private boolean overflow;
+
+    /**
+     * 上次扫描得到的工作区状态
+     */
+    private Index baseline;
+
+    private long baselineTime;
+
+    /**
+     * 上次扫描用的 ignore 规则
+     */
+    private IgnoreNode ignoreNode;
+
+    /**
+     * 上次扫描时 mtime 在 racy 时间内的文件, 下次 snapshot 时重新 stat
+     */
+    private Set<String> racyPaths = new HashSet<>();
+
+    /**
+     * 监听 .git 目录, 只用来接收标记文件的事件. 为空时每次 stat 所有文件和目录
+     */
+    private final WatchKey syncKey;
+    private final Path syncDir;
+    private long syncSeq;
+
+    /**
+     * 已经送达的标记文件名, eventLock 保护
+     */
+    private final Set<String> syncedMarkers = new HashSet<>();
+
+    /**
+     * 上次扫描后各目录的 mtime, 用来发现事件还没送到的新建文件. 只在没有 syncKey 时使用
+     */
+    private Map<Path, Long> dirMtimes = new HashMap<>();
+
+    public WorkTreeWatcher(String localDir, int parallelism) throws IOException {
+        this.localDir = localDir;
+        this.root = Paths.get(localDir).toAbsolutePath();
+        this.parallelism = parallelism;
+        this.watchService = root.getFileSystem().newWatchService();
+        registerAll(root);
+        this.syncDir = root.resolve(GIT_DIR_NAME);
+        // 轮询实现按目录分别扫描, 不同目录的事件没有先后顺序
+        boolean polling = watchService.getClass().getSimpleName().startsWith("Polling");
+        if (!polling && Files.isDirectory(syncDir, LinkOption.NOFOLLOW_LINKS)) {
+            this.syncKey = syncDir.register(watchService, ENTRY_CREATE);
+        } else {
+            log.info("work tree watcher stats all files on every snapshot, polling: {}", polling);
+            this.syncKey = null;
+        }
+        this.thread = new Thread(this::loop, "work-tree-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public Index snapshot(Index cachedIndex) throws IOException {
+        return snapshot(cachedIndex, null);
+    }
+
+    /**
+     * 当前工作区的 index, 和 {@link Index#generateFromLocalDir(String, Index, IgnoreNode, SparseFilter, int)} 不带 sparse 的结果一致
+     *
+     * @param cachedIndex stat 未变的文件复用其中的 objectId
+     * @param ignoreNode  被忽略的文件不扫描, 和上次不是同一个对象时全量扫描
+     */
+    public synchronized Index snapshot(Index cachedIndex, IgnoreNode ignoreNode) throws IOException {
+        boolean synced = syncKey == null || sync();
+        drainEvents();
+        Set<String> paths;
+        boolean fullScan;
+        synchronized (dirtyLock) {
+            paths = dirtyPaths;
+            fullScan = overflow || baseline == null || ignoreNode != this.ignoreNode || !synced;
+            dirtyPaths = new HashSet<>();
+            overflow = false;
+        }
+        long scanTime = System.currentTimeMillis();
+        try {
+            if (fullScan) {
+                baseline = Index.generateFromLocalDir(localDir, cachedIndex, ignoreNode, null, parallelism);
+                this.ignoreNode = ignoreNode;
+            } else {
+                paths.addAll(syncKey == null ? stalePaths() : staleRacyPaths());
+                if (!paths.isEmpty()) {
+                    baseline = update(baseline, paths, cachedIndex);
+                }
+            }
+            baselineTime = scanTime;
+            if (syncKey == null) {
+                dirMtimes = recordDirMtimes(baseline);
+            } else {
+                racyPaths = recordRacyPaths(fullScan ? baseline.getEntries() : candidatesAfterUpdate(paths));
+            }
+        } catch (IOException | RuntimeException e) {
+            // 没有处理完的路径放回去, 下次再扫
+            synchronized (dirtyLock) {
+                dirtyPaths.addAll(paths);
+                overflow |= fullScan;
+            }
+            throw e;
+        }
+        Index index = new Index();
+        index.setEntries(new ArrayList<>(baseline.getEntries()));
+        return index;
+    }
+
+    private Index update(Index previous, Set<String> paths, Index cachedIndex) throws IOException {
+        Index index = new Index();
+        index.setEntries(new ArrayList<>(previous.getEntries()));
+
+        List<File> existing = new ArrayList<>();
+        for (String path : paths) {
+            File file = new File(localDir, path);
+            if (file.exists()) {
+                existing.add(file);
+            }
+        }
+        // 和全量扫描用同样的 ignore 规则
+        WorkTreeScanner scanner = new WorkTreeScanner(localDir, ignoreNode, parallelism);
+        List<Index.Entry> scanned = scanner.scan(existing, cachedIndex, file -> ObjectUtils.sha1hash(ObjectEntity.Type.blob, file));
+
+        Set<String> scannedPaths = new HashSet<>();
+        for (Index.Entry entry : scanned) {
+            scannedPaths.add(entry.getPath());
+        }
+        for (String path : paths) {
+            for (Index.Entry entry : index.entriesUnder(path)) {
+                if (!scannedPaths.contains(entry.getPath())) {
+                    index.remove(entry.getPath());
+                }
+            }
+        }
+        index.upsert(scanned);
+        log.debug("work tree updated by {} dirty paths", paths.size());
+        return index;
+    }
+
+    /**
+     * 在 .git 下建一个新的标记文件, 等它的事件送达. inotify 的事件按顺序送达, 收到标记的事件时之前的修改都已经在队列里了
+     *
+     * @return 超时返回 false
+     */
+    private boolean sync() throws IOException {
+        String name = SYNC_MARKER_PREFIX + (++syncSeq);
+        Path marker = syncDir.resolve(name);
+        Files.deleteIfExists(marker);
+        Files.createFile(marker);
+        try {
+            long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MILLIS;
+            synchronized (eventLock) {
+                while (true) {
+                    drainEvents();
+                    if (syncedMarkers.remove(name)) {
+                        syncedMarkers.clear();
+                        return true;
+                    }
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        log.warn("work tree watch sync timeout, fall back to full scan");
+                        return false;
+                    }
+                    eventLock.wait(Math.min(left, 10));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("work tree watch sync interrupted");
+        } finally {
+            Files.deleteIfExists(marker);
+        }
+    }
+
+    /**
+     * 上次扫描时还在 racy 时间内的文件中, stat 和上次结果不一致的
+     */
+    private Set<String> staleRacyPaths() throws IOException {
+        Set<String> stale = new HashSet<>();
+        for (String racyPath : racyPaths) {
+            Index.Entry entry = baseline.get(racyPath);
+            if (entry == null || isStale(entry, baselineTime - RACY_MILLIS)) {
+                stale.add(racyPath);
+            }
+        }
+        if (!stale.isEmpty()) {
+            log.debug("{} racy paths changed without watch events", stale.size());
+        }
+        return stale;
+    }
+
+    /**
+     * 这次重新扫描过的和上次 racy 的 entry, 没扫描过的 entry 在上次就已经不 racy 了
+     */
+    private List<Index.Entry> candidatesAfterUpdate(Set<String> paths) {
+        List<Index.Entry> candidates = new ArrayList<>();
+        for (String path : paths) {
+            candidates.addAll(baseline.entriesUnder(path));
+        }
+        for (String racyPath : racyPaths) {
+            Index.Entry entry = baseline.get(racyPath);
+            if (entry != null) {
+                candidates.add(entry);
+            }
+        }
+        return candidates;
+    }
+
+    private Set<String> recordRacyPaths(Collection<Index.Entry> entries) {
+        Set<String> result = new HashSet<>();
+        long racyTime = baselineTime - RACY_MILLIS;
+        for (Index.Entry entry : entries) {
+            if (entry.getMtime() >= racyTime) {
+                result.add(entry.getPath());
+            }
+        }
+        return result;
+    }
+
+    private boolean isStale(Index.Entry entry, long racyTime) throws IOException {
+        Path path = root.resolve(entry.getPath());
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return true;
+        }
+        FileStat stat = FileStat.of(path);
+        return stat.getMtime() >= racyTime || stat.getMtime() != entry.getMtime() || stat.getSize() != entry.getSize()
+                || entry.getCtime() != 0 && entry.getCtime() != stat.getCtime()
+                || entry.getInode() != 0 && entry.getInode() != stat.getInode();
+    }
+
+    /**
+     * 和上次结果 stat 不一致的路径: 文件被改或删除, 目录下有新建的文件或目录
+     */
+    private Set<String> stalePaths() throws IOException {
+        Set<String> stale = new HashSet<>();
+        long racyTime = baselineTime - RACY_MILLIS;
+        Set<String> knownPaths = new HashSet<>();
+        for (Index.Entry entry : baseline.getEntries()) {
+            knownPaths.add(entry.getPath());
+            if (isStale(entry, racyTime)) {
+                stale.add(entry.getPath());
+            }
+        }
+        for (Map.Entry<Path, Long> dirMtime : dirMtimes.entrySet()) {
+            Path dir = dirMtime.getKey();
+            long mtime = dir.toFile().lastModified();
+            if (mtime == 0 || mtime == dirMtime.getValue() && mtime < racyTime) {
+                // 目录已删除时其下的文件都会被发现
+                continue;
+            }
+            String[] names = dir.toFile().list();
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                Path child = dir.resolve(name);
+                String relativePath = root.relativize(child).toString();
+                if (isGitPath(relativePath)) {
+                    continue;
+                }
+                if (!knownPaths.contains(relativePath) && !dirMtimes.containsKey(child)) {
+                    stale.add(relativePath);
+                }
+            }
+        }
+        if (!stale.isEmpty()) {
+            log.debug("{} paths changed without watch events", stale.size());
+        }
+        return stale;
+    }
+
+    /**
+     * 监听的目录和结果中文件的上级目录
+     */
+    private Map<Path, Long> recordDirMtimes(Index index) {
+        Set<Path> dirs = new HashSet<>(watchKeys.values());
+        dirs.add(root);
+        for (Index.Entry entry : index.getEntries()) {
+            Path parent = root.resolve(entry.getPath()).getParent();
+            while (parent != null && parent.startsWith(root) && dirs.add(parent)) {
+                parent = parent.getParent();
+            }
+        }
+        Map<Path, Long> result = new HashMap<>();
+        for (Path dir : dirs) {
+            long mtime = dir.toFile().lastModified();
+            if (mtime != 0) {
+                result.put(dir, mtime);
+            }
+        }
+        return result;
+    }
+
+    private void markDirty(String path) {
+        synchronized (dirtyLock) {
+            dirtyPaths.add(path);
+        }
+    }
+
+    private void markOverflow() {
+        synchronized (dirtyLock) {
+            overflow = true;
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            synchronized (eventLock) {
+                processKey(key);
+            }
+        }
+    }
+
+    /**
+     * 把已经送达的事件同步处理掉, 不等后台线程
+     */
+    private void drainEvents() {
+        synchronized (eventLock) {
+            try {
+                WatchKey key;
+                while ((key = watchService.poll()) != null) {
+                    processKey(key);
+                }
+            } catch (ClosedWatchServiceException e) {
+                markOverflow();
+            }
+        }
+    }
+
+    private void processKey(WatchKey key) {
+        if (key == syncKey) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    markOverflow();
+                } else if (String.valueOf(event.context()).startsWith(SYNC_MARKER_PREFIX)) {
+                    syncedMarkers.add(String.valueOf(event.context()));
+                }
+            }
+            key.reset();
+            eventLock.notifyAll();
+            return;
+        }
+        Path dir = watchKeys.get(key);
+        if (dir == null) {
+            key.cancel();
+            return;
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                log.warn("work tree watch overflow, fall back to full scan");
+                markOverflow();
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            String relativePath = root.relativize(child).toString();
+            if (isGitPath(relativePath)) {
+                continue;
+            }
+            markDirty(relativePath);
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    registerAll(child);
+                } catch (IOException e) {
+                    log.warn("watch register failed: " + child, e);
+                    markOverflow();
+                }
+            }
+        }
+        if (!key.reset()) {
+            watchKeys.remove(key);
+        }
+    }
+
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (GIT_DIR_NAME.equals(String.valueOf(dir.getFileName()))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                watchKeys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                // 监听建立前目录已被删除
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static boolean isGitPath(String relativePath) {
+        for (String name : relativePath.split(File.separator.equals("\\") ? "\\\\" : File.separator)) {
+            if (GIT_DIR_NAME.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        watchService.close();
+        thread.interrupt();
+    }
+}
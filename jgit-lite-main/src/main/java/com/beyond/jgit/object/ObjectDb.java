@@ -3,15 +3,18 @@ package com.beyond.jgit.object;
 import com.beyond.jgit.pack.PackCache;
 import com.beyond.jgit.pack.PackInfo;
 import com.beyond.jgit.pack.PackReader;
+import com.beyond.jgit.util.FileUtil;
 import com.beyond.jgit.util.ObjectUtils;
 import com.beyond.jgit.util.PackUtils;
-import com.beyond.jgit.util.ZlibCompression;
+import com.beyond.jgit.util.ZlibCodec;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.zip.Deflater;
 
 
 public class ObjectDb {
@@ -23,16 +26,32 @@ public class ObjectDb {
     }
 
     public String write(byte[] bytes) throws IOException {
+        return write(bytes, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public String write(byte[] bytes, int compressionLevel) throws IOException {
         String objectId = ObjectUtils.sha1hash(bytes);
         File file = ObjectUtils.getObjectFile(objectsDir, objectId);
-        FileUtils.writeByteArrayToFile(file, ZlibCompression.compressBytes(bytes));
+        // 先写临时文件再替换, 不改动已有的文件内容 (可能和 FileStorage 远程是硬链接)
+        File tmpFile = new File(file.getParentFile(), file.getName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            FileUtils.writeByteArrayToFile(tmpFile, ZlibCodec.compress(bytes, compressionLevel));
+            FileUtil.move(tmpFile, file);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
         return objectId;
     }
 
     public byte[] read(String objectId) throws IOException {
         File file = ObjectUtils.getObjectFile(objectsDir, objectId);
         byte[] bytes = FileUtils.readFileToByteArray(file);
-        return ZlibCompression.decompressBytes(bytes);
+        return ZlibCodec.decompress(bytes);
+    }
+
+    public ObjectEntity readEntity(String objectId) throws IOException {
+        File file = ObjectUtils.getObjectFile(objectsDir, objectId);
+        return ObjectEntity.inflateFrom(FileUtils.readFileToByteArray(file));
     }
 
     public boolean exists(String objectId) throws IOException {
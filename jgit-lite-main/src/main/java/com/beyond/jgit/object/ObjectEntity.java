@@ -1,9 +1,13 @@
 package com.beyond.jgit.object;
 
 import com.beyond.jgit.util.ObjectUtils;
+import com.beyond.jgit.util.ZlibCodec;
 import lombok.Data;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 @Data
 public class ObjectEntity {
@@ -59,6 +63,68 @@ public class ObjectEntity {
         return objectEntity;
     }
 
+    /**
+     * 解压 loose object. 先解出 "type len\0" 头, 再按 len 分配 data, 其余部分直接解压到 data 里,
+     * 不再经过完整的中间数组
+     */
+    public static ObjectEntity inflateFrom(byte[] compressed) throws IOException {
+        Inflater inflater = ZlibCodec.inflater(compressed, 0, compressed.length);
+        try {
+            // "commit " + int + "\0" 不超过 18 字节
+            byte[] head = new byte[32];
+            int headLen = 0;
+            int nul = -1;
+            while (nul < 0) {
+                if (headLen == head.length || inflater.finished()) {
+                    throw new IOException("object header error");
+                }
+                int n = inflater.inflate(head, headLen, head.length - headLen);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated object");
+                }
+                for (int i = headLen; i < headLen + n; i++) {
+                    if (head[i] == '\0') {
+                        nul = i;
+                        break;
+                    }
+                }
+                headLen += n;
+            }
+            int space = -1;
+            for (int i = 0; i < nul; i++) {
+                if (head[i] == ' ') {
+                    space = i;
+                    break;
+                }
+            }
+            if (space <= 0) {
+                throw new IOException("object header error");
+            }
+            int dataLength = 0;
+            for (int i = space + 1; i < nul; i++) {
+                dataLength = dataLength * 10 + (head[i] - '0');
+            }
+
+            byte[] data = new byte[dataLength];
+            int n = Math.min(headLen - nul - 1, dataLength);
+            System.arraycopy(head, nul + 1, data, 0, n);
+            while (n < dataLength) {
+                int inflated = inflater.inflate(data, n, dataLength - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated object");
+                }
+                n += inflated;
+            }
+
+            ObjectEntity objectEntity = new ObjectEntity();
+            objectEntity.setType(Type.valueOf(new String(head, 0, space)));
+            objectEntity.setData(data);
+            return objectEntity;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
     public byte[] toBytes() {
         return ObjectUtils.buildObjectBytes(type, data);
     }
@@ -2,10 +2,18 @@ package com.beyond.jgit.object;
 
 
 import java.io.IOException;
+import java.util.zip.Deflater;
 
 public interface ObjectManager {
 
-    String write(ObjectEntity objectEntity) throws IOException;
+    default String write(ObjectEntity objectEntity) throws IOException {
+        return write(objectEntity, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param compressionLevel loose object 的 zlib 压缩级别
+     */
+    String write(ObjectEntity objectEntity, int compressionLevel) throws IOException;
 
     ObjectEntity read(String objectId) throws IOException;
 
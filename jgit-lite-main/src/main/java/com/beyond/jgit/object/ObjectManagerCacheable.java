@@ -1,14 +1,25 @@
 package com.beyond.jgit.object;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class ObjectManagerCacheable implements ObjectManager {
 
     private static final int CACHE_SIZE = 5000;
 
-    private final Map<String, ObjectEntity> objectId2ObjectEntityCache = new HashMap<>();
+    /**
+     * 按访问顺序淘汰, checkout 等会在多个线程中读取
+     */
+    private final Map<String, ObjectEntity> objectId2ObjectEntityCache = Collections.synchronizedMap(new LinkedHashMap<String, ObjectEntity>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ObjectEntity> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    });
 
     private final ObjectManager objectManager;
 
@@ -21,23 +32,25 @@ public class ObjectManagerCacheable implements ObjectManager {
     }
 
     @Override
-    public String write(ObjectEntity objectEntity) throws IOException {
-        return objectManager.write(objectEntity);
+    public String write(ObjectEntity objectEntity, int compressionLevel) throws IOException {
+        return objectManager.write(objectEntity, compressionLevel);
     }
 
     @Override
     public ObjectEntity read(String objectId) throws IOException {
-        if (objectId2ObjectEntityCache.containsKey(objectId)){
-            return objectId2ObjectEntityCache.get(objectId);
+        ObjectEntity cached = objectId2ObjectEntityCache.get(objectId);
+        if (cached != null) {
+            return cached;
         }
         ObjectEntity result = objectManager.read(objectId);
-        putCache(objectId, result);
+        objectId2ObjectEntityCache.put(objectId, result);
         return result;
     }
 
     @Override
     public boolean exists(String objectId) throws IOException {
-        if (objectId2ObjectEntityCache.get(objectId) != null && objectId2ObjectEntityCache.get(objectId) != ObjectEntity.EMPTY ){
+        ObjectEntity cached = objectId2ObjectEntityCache.get(objectId);
+        if (cached != null && cached != ObjectEntity.EMPTY) {
             return true;
         }
         return objectManager.exists(objectId);
@@ -47,11 +60,4 @@ public class ObjectManagerCacheable implements ObjectManager {
     public void deleteLooseObject(String objectId) {
         objectManager.deleteLooseObject(objectId);
     }
-
-    private void putCache(String commitObjectId, ObjectEntity objectEntity){
-        if (objectId2ObjectEntityCache.size() > CACHE_SIZE){
-            objectId2ObjectEntityCache.entrySet().iterator().remove();
-        }
-        objectId2ObjectEntityCache.put(commitObjectId, objectEntity);
-    }
 }
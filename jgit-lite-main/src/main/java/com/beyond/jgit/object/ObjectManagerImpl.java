@@ -22,9 +22,9 @@ public class ObjectManagerImpl implements ObjectManager {
     }
 
     @Override
-    public String write(ObjectEntity objectEntity) throws IOException {
+    public String write(ObjectEntity objectEntity, int compressionLevel) throws IOException {
         byte[] bytes = objectEntity.toBytes();
-        return objectDb.write(bytes);
+        return objectDb.write(bytes, compressionLevel);
     }
 
     @Override
@@ -33,8 +33,7 @@ public class ObjectManagerImpl implements ObjectManager {
             return ObjectEntity.EMPTY;
         }
         if (objectDb.existsInLoose(objectId)) {
-            byte[] bytes = objectDb.read(objectId);
-            return ObjectEntity.parseFrom(bytes);
+            return objectDb.readEntity(objectId);
         }
 
         String objectsDir = objectDb.getObjectsDir();
@@ -3,6 +3,7 @@ package com.beyond.jgit.pack;
 import com.beyond.jgit.object.ObjectEntity;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.ToString;
 
 @EqualsAndHashCode(callSuper = true)
 @Data
@@ -11,6 +12,16 @@ public class BaseBlock extends Block{
     private byte[] content;
     private ObjectEntity.Type type;
 
+    /**
+     * 压缩后的 content, size() 和 format() 共用, compressorId 为压缩所用算法, 避免压缩两次
+     */
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private transient byte[] compressedContent;
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private transient int compressorId;
+
     public BaseBlock() {
     }
 
@@ -1,12 +1,17 @@
 package com.beyond.jgit.pack;
 
+import com.beyond.jgit.util.FormatUtils;
+import com.beyond.jgit.util.codec.Compressor;
+import com.beyond.jgit.util.codec.Compressors;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.zip.Deflater;
 
 /**
  * @author chenshipeng
@@ -35,13 +40,15 @@ public class PackFile {
                 blockGroups.add(currBlockGroup);
                 sumSize = 0;
             }
-            sumSize += PackFileFormatter.size(block);
+            sumSize += PackFileFormatter.size(block, header);
         }
 
         List<PackFile> packFiles = new ArrayList<>();
         for (List<Block> blockGroup : blockGroups) {
             PackFile packFile = new PackFile();
-            packFile.setHeader(new Header(1, blockGroup.size()));
+            Header subHeader = new Header(header.getVersion(), Header.int2Bytes(blockGroup.size()));
+            subHeader.setCompressionLevel(header.getCompressionLevel());
+            packFile.setHeader(subHeader);
             packFile.setBlockList(blockGroup);
             packFiles.add(packFile);
         }
@@ -53,7 +60,22 @@ public class PackFile {
 
     @Data
     public static class Header{
+        /**
+         * 最早的格式: base block 只记录压缩后长度
+         */
+        public static final int REVISION_LEGACY = 0;
+        /**
+         * base block 在压缩后长度之后再记录解压后长度, 读取时可以一次分配好数组
+         */
+        public static final int REVISION_RAW_SIZE = 1;
+        public static final int CURRENT_REVISION = REVISION_RAW_SIZE;
+
         private byte[] fileFlag = new byte[]{'P','A','C','K'};
+
+        /**
+         * 写 pack 时 zlib 的压缩级别, 不写入文件
+         */
+        private transient int compressionLevel = Deflater.DEFAULT_COMPRESSION;
         private byte[] version;
         private byte[] entries;
 
@@ -67,7 +89,40 @@ public class PackFile {
             this.entries = int2Bytes(entries);
         }
 
-        public byte[] int2Bytes(int n){
+        public Header(Compressor compressor, int entries) {
+            this(CURRENT_REVISION << 16 | compressor.getId(), entries);
+        }
+
+        public static Header legacy() {
+            return new Header(REVISION_LEGACY << 16 | Compressors.ZLIB.getId(), 0);
+        }
+
+        /**
+         * 从 pack 文件的前12个字节解析
+         */
+        public static Header parse(byte[] packFileBytes) {
+            return new Header(Arrays.copyOfRange(packFileBytes, 4, 8), Arrays.copyOfRange(packFileBytes, 8, 12));
+        }
+
+        /**
+         * version 低16位是压缩算法id, 旧的 pack version 为 1, 即 zlib
+         */
+        public Compressor compressor() {
+            return Compressors.of(FormatUtils.readNextInt(version, 0) & 0xffff);
+        }
+
+        /**
+         * version 高16位是格式版本
+         */
+        public int revision() {
+            return FormatUtils.readNextInt(version, 0) >>> 16;
+        }
+
+        public boolean hasRawSize() {
+            return revision() >= REVISION_RAW_SIZE;
+        }
+
+        public static byte[] int2Bytes(int n){
             byte[] result = new byte[4];
             result[3] = (byte) (n & 0xff);
             result[2] = (byte) (n >> 8 & 0xff);
@@ -5,11 +5,15 @@ import com.beyond.delta.entity.Delta;
 import com.beyond.jgit.object.ObjectEntity;
 import com.beyond.jgit.util.FormatUtils;
 import com.beyond.jgit.util.ObjectUtils;
-import com.beyond.jgit.util.ZlibCompression;
+import com.beyond.jgit.util.codec.Compressor;
 import lombok.SneakyThrows;
+import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -19,11 +23,16 @@ import java.util.List;
  */
 public class PackFileFormatter {
 
+    public static int size(Block block) {
+        return size(block, PackFile.Header.legacy());
+    }
+
     @SneakyThrows
-    public static int size(Block block)  {
+    public static int size(Block block, PackFile.Header header)  {
         if (block instanceof BaseBlock) {
-            byte[] compressBytes = ZlibCompression.compressBytes(((BaseBlock) block).getContent());
-            return FormatUtils.dynamicByteSizeOfTypeAndSize(3,compressBytes.length) + compressBytes.length;
+            byte[] compressBytes = compressedContent((BaseBlock) block, header);
+            int rawSize = header.hasRawSize() ? FormatUtils.dynamicByteSize(((BaseBlock) block).getContent().length) : 0;
+            return FormatUtils.dynamicByteSizeOfTypeAndSize(3,compressBytes.length) + rawSize + compressBytes.length;
         }
         if (block instanceof DeltaBlock) {
             List<Delta> deltas = ((DeltaBlock) block).getDeltas();
@@ -39,7 +48,8 @@ public class PackFileFormatter {
 
     public static int size(PackFile packFile) {
         List<Block> blockList = packFile.getBlockList();
-        int blockListSize = blockList.stream().map(PackFileFormatter::size).reduce(Integer::sum).orElse(0);
+        PackFile.Header header = packFile.getHeader();
+        int blockListSize = blockList.stream().map(x -> size(x, header)).reduce(Integer::sum).orElse(0);
         return 12 + blockListSize + 20;
     }
 
@@ -51,7 +61,7 @@ public class PackFileFormatter {
         offset += 12;
 
         List<Block> blocks = packFile.getBlockList();
-        offset = format(blocks, result, offset);
+        offset = format(blocks, header, result, offset);
 
         PackIndex packIndex = PackIndex.newInstance();
         for (Block block : blocks) {
@@ -67,10 +77,53 @@ public class PackFileFormatter {
     }
 
 
+    /**
+     * 按 block 逐个格式化后写到 out, 不分配整个 pack 的 byte[]. 写完后设置 trailer
+     */
+    public static PackIndex write(PackFile packFile, OutputStream out) throws IOException {
+        PackFile.Header header = packFile.getHeader();
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        DigestOutputStream digestOut = new DigestOutputStream(out, digest);
+        digestOut.write(header.getFileFlag());
+        digestOut.write(header.getVersion());
+        digestOut.write(header.getEntries());
+        int offset = 12;
+
+        PackIndex packIndex = PackIndex.newInstance();
+        for (Block block : packFile.getBlockList()) {
+            byte[] bytes = new byte[size(block, header)];
+            int length;
+            if (block instanceof BaseBlock) {
+                length = formatOneBase((BaseBlock) block, header, bytes, 0);
+            } else if (block instanceof DeltaBlock) {
+                length = formatOneDelta((DeltaBlock) block, bytes, 0);
+            } else {
+                throw new RuntimeException("错误类型");
+            }
+            block.setStart(offset);
+            block.setEnd(offset + length);
+            digestOut.write(bytes, 0, length);
+            packIndex.add(block.getObjectId(), offset);
+            offset += length;
+        }
+
+        PackFile.Trailer trailer = new PackFile.Trailer(digest.digest());
+        packFile.setTrailer(trailer);
+        out.write(trailer.getChecksum());
+        out.flush();
+
+        packIndex.setPackFileChecksum(trailer.getChecksum());
+        return packIndex;
+    }
+
     public static int format(List<Block> blocks, byte[] result, int offset) throws IOException {
+        return format(blocks, PackFile.Header.legacy(), result, offset);
+    }
+
+    public static int format(List<Block> blocks, PackFile.Header header, byte[] result, int offset) throws IOException {
         for (Block block : blocks) {
             if (block instanceof BaseBlock) {
-                offset = formatOneBase((BaseBlock) block, result, offset);
+                offset = formatOneBase((BaseBlock) block, header, result, offset);
             }
             if (block instanceof DeltaBlock) {
                 offset = formatOneDelta((DeltaBlock) block, result, offset);
@@ -80,15 +133,32 @@ public class PackFileFormatter {
     }
 
     public static int formatOneBase(BaseBlock baseBlock, byte[] result, int offset) throws IOException {
+        return formatOneBase(baseBlock, PackFile.Header.legacy(), result, offset);
+    }
+
+    public static int formatOneBase(BaseBlock baseBlock, PackFile.Header header, byte[] result, int offset) throws IOException {
         baseBlock.setStart(offset);
-        byte[] compressBytes = ZlibCompression.compressBytes(baseBlock.getContent());
+        byte[] compressBytes = compressedContent(baseBlock, header);
         int length = compressBytes.length;
         offset = FormatUtils.dynamicAddTypeAndSize(baseBlock.getType().getVal(), 3, length, result, offset);
+        if (header.hasRawSize()) {
+            offset = FormatUtils.dynamicAddInt(baseBlock.getContent().length, result, offset);
+        }
         System.arraycopy(compressBytes, 0, result, offset, length);
         baseBlock.setEnd(offset + length);
+        baseBlock.setCompressedContent(null);
         return offset + length;
     }
 
+    private static byte[] compressedContent(BaseBlock baseBlock, PackFile.Header header) {
+        Compressor compressor = header.compressor();
+        if (baseBlock.getCompressedContent() == null || baseBlock.getCompressorId() != compressor.getId()) {
+            baseBlock.setCompressedContent(compressor.compress(baseBlock.getContent(), 0, baseBlock.getContent().length, header.getCompressionLevel()));
+            baseBlock.setCompressorId(compressor.getId());
+        }
+        return baseBlock.getCompressedContent();
+    }
+
     public static int formatOneDelta(DeltaBlock deltaBlock, byte[] result, int offset) {
         List<Delta> deltas = deltaBlock.getDeltas();
         int deltaByteSize = DeltaUtils.deltaByteSize(deltas);
@@ -139,7 +209,7 @@ public class PackFileFormatter {
         packFile.setHeader(header);
         offset += 12;
 
-        packFile.setBlockList(parse(bytes, offset, bytes.length - 20 - offset));
+        packFile.setBlockList(parse(bytes, offset, bytes.length - 20 - offset, header));
         offset += bytes.length - 20 - offset;
 
         byte[] currChecksum = FormatUtils.checksum(bytes, 0, offset);
@@ -158,10 +228,14 @@ public class PackFileFormatter {
 
 
     public static List<Block> parse(byte[] bytes, int offset, int len) throws IOException {
+        return parse(bytes, offset, len, PackFile.Header.legacy());
+    }
+
+    public static List<Block> parse(byte[] bytes, int offset, int len, PackFile.Header header) throws IOException {
         List<Block> blocks = new ArrayList<>();
         int end = offset + len;
         while (offset < end) {
-            Block block = parseNextBlock(bytes, offset);
+            Block block = parseNextBlock(bytes, offset, header);
             blocks.add(block);
             offset = block.getEnd();
         }
@@ -170,6 +244,10 @@ public class PackFileFormatter {
 
 
     public static Block parseNextBlock(byte[] bytes, int offset) throws IOException {
+        return parseNextBlock(bytes, offset, PackFile.Header.legacy());
+    }
+
+    public static Block parseNextBlock(byte[] bytes, int offset, PackFile.Header header) throws IOException {
         int[] typeAndSize = new int[3];
         offset = FormatUtils.readNextDynamicTypeAndSize(3, bytes, offset, typeAndSize);
         int type = typeAndSize[1];
@@ -178,9 +256,12 @@ public class PackFileFormatter {
         if (type == 1 || type == 2 || type == 3) {
             BaseBlock block = new BaseBlock();
             block.setStart(offset);
-            byte[] content = new byte[size];
-            System.arraycopy(bytes, offset, content, 0, size);
-            block.setContent(ZlibCompression.decompressBytes(content));
+            int rawSize = 0;
+            if (header.hasRawSize()) {
+                rawSize = FormatUtils.readNextDynamicInt(bytes, offset);
+                offset += FormatUtils.dynamicByteSize(rawSize);
+            }
+            block.setContent(header.compressor().decompress(bytes, offset, size, rawSize));
             offset += size;
             block.setType(ObjectEntity.Type.of(type));
             block.setEnd(offset);
@@ -25,7 +25,7 @@ public class PackReader {
                 continue;
             }
             byte[] packFileBytes = packPair.getPackDataBytes();
-            Block block = PackFileFormatter.parseNextBlock(packFileBytes, offsetInPackFile);
+            Block block = PackFileFormatter.parseNextBlock(packFileBytes, offsetInPackFile, PackFile.Header.parse(packFileBytes));
             ObjectEntity result = new ObjectEntity();
             if (block instanceof BaseBlock) {
                 result.setType(((BaseBlock) block).getType());
@@ -2,16 +2,22 @@ package com.beyond.jgit.pack;
 
 import org.apache.commons.io.FileUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 
 public class PackWriter {
+
+    /**
+     * 边生成边写文件, 不需要整个 pack 的 byte[]
+     */
     public static void write(PackFile packFile, File packDataFile, File packIndexFile) throws IOException {
-        byte[] packFileBytes = new byte[PackFileFormatter.size(packFile)];
-        PackIndex packIndex = PackFileFormatter.format(packFile, packFileBytes, 0);
-        byte[] packIndexBytes = PackIndexFormatter.format(packIndex);
-        FileUtils.writeByteArrayToFile(packDataFile, packFileBytes);
-        FileUtils.writeByteArrayToFile(packIndexFile, packIndexBytes);
+        PackIndex packIndex;
+        try (OutputStream out = new BufferedOutputStream(FileUtils.openOutputStream(packDataFile))) {
+            packIndex = PackFileFormatter.write(packFile, out);
+        }
+        FileUtils.writeByteArrayToFile(packIndexFile, PackIndexFormatter.format(packIndex));
         PackCache.clear();
     }
 }
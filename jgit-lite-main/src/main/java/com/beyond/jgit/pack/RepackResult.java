@@ -0,0 +1,19 @@
+package com.beyond.jgit.pack;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+public class RepackResult {
+
+    private int blockCount;
+
+    private List<String> packNames = new ArrayList<>();
+
+    /**
+     * 超过 delta 资源上限, 以完整对象存入 pack 的 objectId
+     */
+    private List<String> deltaSkippedObjectIds = new ArrayList<>();
+}
@@ -1,10 +1,49 @@
 package com.beyond.jgit.storage;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public abstract class AbstractStorage implements Storage{
     @Override
     public String readFullToString(String path) throws IOException {
         return new String(readFullyToByteArray(path));
     }
+
+    @Override
+    public void upload(ByteBuffer buffer, String targetPath) throws IOException {
+        upload(new ByteBufferInputStream(buffer.duplicate()), buffer.remaining(), targetPath);
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
 }
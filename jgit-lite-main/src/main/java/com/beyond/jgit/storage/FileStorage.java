@@ -1,21 +1,54 @@
 package com.beyond.jgit.storage;
 
 import com.beyond.jgit.util.PathUtils;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
-import java.util.Collection;
-import java.util.List;
-
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * 本地目录作为远程仓库.
+ * <p>
+ * 对象和 pack 以内容命名, 写入后不再修改, 在同一文件系统上直接建硬链接, 建不了时用 transferTo 复制.
+ * info/packs, refs, logs 等会被改写的文件总是复制. 目标都是先写临时文件再替换, 不会读到写了一半的文件.
+ */
+@Slf4j
 public class FileStorage extends AbstractStorage {
 
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    /**
+     * loose 对象 objects/xx/yyy.. 和 objects/pack 下的 pack, idx
+     */
+    private static final Pattern IMMUTABLE_PATH = Pattern.compile("(^|/)objects/([0-9a-f]{2}/[0-9a-f]{38}|pack/[^/]+\\.(pack|idx))$");
+
     private final String basePath;
 
+    private final TransferEngine transferEngine;
+
+    /**
+     * 跨文件系统或者不支持硬链接时关掉, 之后直接复制
+     */
+    private volatile boolean hardLinkEnabled = true;
+
     public FileStorage(String basePath) {
+        this(basePath, DEFAULT_PARALLELISM);
+    }
+
+    public FileStorage(String basePath, int parallelism) {
         this.basePath = basePath;
+        this.transferEngine = new TransferEngine(parallelism, 0, 0);
     }
 
     @Override
@@ -23,18 +56,48 @@ public class FileStorage extends AbstractStorage {
         return new File(PathUtils.concat(basePath, path)).exists();
     }
 
+    @Override
+    public List<String> list(String dir) {
+        String[] names = new File(PathUtils.concat(basePath, dir)).list();
+        return names == null ? Collections.emptyList() : Arrays.asList(names);
+    }
+
+    @Override
+    public long length(String path) {
+        File file = new File(PathUtils.concat(basePath, path));
+        return file.exists() ? file.length() : -1;
+    }
+
     @Override
     public void upload(String path, String targetPath) throws IOException {
-        FileUtils.copyFile(new File(path), new File(PathUtils.concat(basePath, targetPath)));
+        transfer(new File(path), new File(PathUtils.concat(basePath, targetPath)), isImmutable(targetPath), true);
     }
 
     @Override
-    public void uploadBatch(List<TransportMapping> mappings) throws IOException {
-        for (TransportMapping mapping : mappings) {
-            upload(mapping.getLocalPath(), mapping.getRemotePath());
+    public void upload(InputStream inputStream, long length, String targetPath) throws IOException {
+        File target = new File(PathUtils.concat(basePath, targetPath));
+        File tmpFile = tmpFile(target);
+        try {
+            FileUtils.copyInputStreamToFile(inputStream, tmpFile);
+            Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
         }
     }
 
+    @Override
+    public void uploadBatch(List<TransportMapping> mappings) throws IOException {
+        transferEngine.execute(mappings, x -> upload(x.getLocalPath(), x.getRemotePath()), x -> {
+        });
+    }
+
+    @Override
+    public void uploadBatch(Collection<String> targetPaths, ContentSource source) throws IOException {
+        List<TransportMapping> mappings = targetPaths.stream().distinct().map(x -> TransportMapping.of(null, x)).collect(Collectors.toList());
+        transferEngine.execute(mappings, x -> upload(source.read(x.getRemotePath()), x.getRemotePath()), x -> {
+        });
+    }
+
     @Override
     public void mkdir(Collection<String> dirPaths) throws IOException {
         for (String dirPath : dirPaths) {
@@ -55,7 +118,81 @@ public class FileStorage extends AbstractStorage {
 
     @Override
     public void download(String path, String targetPath) throws IOException {
-        FileUtils.copyFile(new File(PathUtils.concat(basePath, path)), new File(targetPath));
+        transfer(new File(PathUtils.concat(basePath, path)), new File(targetPath), isImmutable(path), true);
+    }
+
+    @Override
+    public void downloadBatch(List<TransportMapping> mappings) throws IOException {
+        transferEngine.execute(mappings, x -> download(x.getRemotePath(), x.getLocalPath()), x -> {
+        });
+    }
+
+    private static boolean isImmutable(String path) {
+        return IMMUTABLE_PATH.matcher(path.replace(File.separatorChar, '/')).find();
+    }
+
+    /**
+     * 先写到同目录的临时文件再放到目标位置.
+     * overwrite 为 false 时用硬链接或不覆盖的复制放到目标位置, 目标已存在时抛 FileAlreadyExistsException, 可以当锁用
+     */
+    private void transfer(File source, File target, boolean immutable, boolean overwrite) throws IOException {
+        if (!source.isFile()) {
+            throw new IOException("source is not a file: " + source);
+        }
+        File tmpFile = tmpFile(target);
+        try {
+            if (!immutable || !link(source, tmpFile)) {
+                transferTo(source, tmpFile);
+            }
+            if (overwrite) {
+                Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                try {
+                    Files.createLink(target.toPath(), tmpFile.toPath());
+                } catch (FileAlreadyExistsException e) {
+                    throw e;
+                } catch (UnsupportedOperationException | IOException e) {
+                    Files.copy(tmpFile.toPath(), target.toPath());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    private static File tmpFile(File target) throws IOException {
+        File parent = target.getAbsoluteFile().getParentFile();
+        FileUtils.forceMkdir(parent);
+        return new File(parent, target.getName() + "." + UUID.randomUUID() + ".tmp");
+    }
+
+    private boolean link(File source, File target) {
+        if (!hardLinkEnabled) {
+            return false;
+        }
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+            return true;
+        } catch (UnsupportedOperationException | IOException e) {
+            log.info("hard link not available, copy instead: {}", e.toString());
+            hardLinkEnabled = false;
+            return false;
+        }
+    }
+
+    private static void transferTo(File source, File target) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long n = in.transferTo(position, size - position, out);
+                if (n <= 0) {
+                    throw new IOException("transfer stopped at " + position + "/" + size + ": " + source);
+                }
+                position += n;
+            }
+        }
     }
 
     @Override
@@ -63,6 +200,16 @@ public class FileStorage extends AbstractStorage {
         return FileUtils.readFileToByteArray(new File(PathUtils.concat(basePath,path)));
     }
 
+    @Override
+    public byte[] readRange(String path, long offset, int length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(PathUtils.concat(basePath, path), "r")) {
+            byte[] bytes = new byte[length];
+            file.seek(offset);
+            file.readFully(bytes);
+            return bytes;
+        }
+    }
+
     @Override
     public String getBasePath() {
         return basePath;
@@ -92,11 +239,7 @@ public class FileStorage extends AbstractStorage {
         if (!sourceFile.exists()){
             return false;
         }
-        if (overwrite){
-            Files.copy(sourceFile.toPath(), new File(getAbsPath(targetPath)).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-        }else{
-            Files.copy(sourceFile.toPath(), new File(getAbsPath(targetPath)).toPath(), StandardCopyOption.ATOMIC_MOVE);
-        }
+        transfer(sourceFile, new File(getAbsPath(targetPath)), isImmutable(sourcePath) && isImmutable(targetPath), overwrite);
         return true;
     }
 }
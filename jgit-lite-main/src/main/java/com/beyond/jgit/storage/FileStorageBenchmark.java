@@ -0,0 +1,61 @@
+package com.beyond.jgit.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 对比逐个 FileUtils.copyFile 和 FileStorage.uploadBatch 上传一个 .git 目录的耗时.
+ * 参数: .git 目录 [目标目录] [轮数] [并发数], 目标目录默认在 .git 旁边, 和源在同一文件系统上才会用硬链接
+ */
+public class FileStorageBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: FileStorageBenchmark <gitDir> [targetDir] [rounds] [parallelism]");
+            return;
+        }
+        File gitDir = new File(args[0]).getAbsoluteFile();
+        File targetDir = args.length > 1 ? new File(args[1]) : new File(gitDir.getParentFile(), "file-storage-benchmark");
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int parallelism = args.length > 3 ? Integer.parseInt(args[3]) : FileStorage.DEFAULT_PARALLELISM;
+
+        Collection<File> files = FileUtils.listFiles(gitDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
+        List<TransportMapping> mappings = new ArrayList<>();
+        long totalSize = 0;
+        for (File file : files) {
+            String relativePath = ".git" + file.getPath().substring(gitDir.getPath().length());
+            mappings.add(TransportMapping.of(file.getPath(), relativePath));
+            totalSize += file.length();
+        }
+        System.out.printf("files: %d, size: %d bytes%n", mappings.size(), totalSize);
+
+        try {
+            for (int i = 0; i < rounds; i++) {
+                FileUtils.deleteQuietly(targetDir);
+                long start = System.nanoTime();
+                for (TransportMapping mapping : mappings) {
+                    FileUtils.copyFile(new File(mapping.getLocalPath()), new File(targetDir, mapping.getRemotePath()));
+                }
+                print("copyFile", start, totalSize);
+
+                FileUtils.deleteQuietly(targetDir);
+                start = System.nanoTime();
+                new FileStorage(targetDir.getPath(), parallelism).uploadBatch(mappings);
+                print("FileStorage", start, totalSize);
+            }
+        } finally {
+            FileUtils.deleteQuietly(targetDir);
+        }
+    }
+
+    private static void print(String name, long startNanos, long totalSize) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%-11s %.0f ms, %.1f MB/s%n", name, seconds * 1000, totalSize / 1024.0 / 1024 / seconds);
+    }
+}
@@ -3,116 +3,736 @@ package com.beyond.jgit.storage;
 import com.beyond.jgit.util.JsonUtils;
 import com.beyond.jgit.util.ObjectUtils;
 import com.beyond.jgit.util.PathUtils;
+import com.thegrizzlylabs.sardineandroid.DavResource;
 import com.thegrizzlylabs.sardineandroid.Sardine;
 import com.thegrizzlylabs.sardineandroid.impl.OkHttpSardine;
 import com.thegrizzlylabs.sardineandroid.impl.SardineException;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.Credentials;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.Okio;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 @Slf4j
 public class SardineStorage extends AbstractStorage {
 
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 500;
+
+    /**
+     * 目录列表在这段时间内直接使用, 超过后用 ETag 确认目录是否变化
+     */
+    public static final long DEFAULT_LISTING_TTL_MILLIS = 10_000;
+
+    /**
+     * 参数相同的 SardineStorage 共用连接池和 dispatcher, 并发请求复用已建立的连接
+     */
+    private static final Map<String, OkHttpClient> SHARED_CLIENTS = new ConcurrentHashMap<>();
+
+    /**
+     * 下面的文件写入后不再改变, 可以用目录列表判断是否存在: objects (子目录), objects/pack, objects/xx
+     */
+    private static final Pattern LISTABLE_DIR = Pattern.compile("/objects(/pack|/[0-9a-f]{2})?$");
+
+    private static final Pattern PACK_PATH = Pattern.compile("/objects/pack/[^/]+\\.pack$");
+
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
     private final String basePath;
 
     private Sardine sardine;
 
+    private final OkHttpClient client;
+
+    private final String credentials;
+
+    private final TransportProfile transportProfile;
+
+    private final TransportMetrics transportMetrics = new TransportMetrics();
+
     private final ExistDirCacheManager existDirs;
 
+    /**
+     * 这个文件的 ETag 作为目录缓存的 generation, 为空时不检查
+     */
+    private String dirCacheGenerationPath;
+
+    private volatile boolean dirCacheChecked;
+
+    /**
+     * 目录绝对路径 -> 目录列表, 存在性判断在本地做, 每个目录只需要一次 PROPFIND
+     */
+    private final Map<String, DirListing> listings = new ConcurrentHashMap<>();
+
+    private long listingTtlMillis = DEFAULT_LISTING_TTL_MILLIS;
+
     private final String sessionDir;
 
+    private final TransferEngine transferEngine;
+
+    /**
+     * 并发上传时同一个目录只创建一次
+     */
+    private final Object mkdirLock = new Object();
+
     public SardineStorage(String basePath, String username, String password) {
         this(basePath, username, password, null, null);
     }
 
     public SardineStorage(String basePath, String username, String password, String existDirCachePath, String sessionDir) {
+        this(basePath, username, password, existDirCachePath, sessionDir, DEFAULT_PARALLELISM, DEFAULT_MAX_RETRIES, DEFAULT_RETRY_BACKOFF_MILLIS);
+    }
+
+    public SardineStorage(String basePath, String username, String password, String existDirCachePath, String sessionDir,
+                          int parallelism, int maxRetries, long retryBackoffMillis) {
+        this(basePath, username, password, existDirCachePath, sessionDir, parallelism, maxRetries, retryBackoffMillis, new TransportProfile());
+    }
+
+    public SardineStorage(String basePath, String username, String password, String existDirCachePath, String sessionDir,
+                          int parallelism, int maxRetries, long retryBackoffMillis, TransportProfile transportProfile) {
         this.basePath = basePath;
-        sardine = new LoggedSardine(new OkHttpSardine());
+        if (transportProfile == null) {
+            transportProfile = new TransportProfile();
+        }
+        TransportProfile profile = transportProfile;
+        this.transportProfile = profile;
+        OkHttpClient sharedClient = SHARED_CLIENTS.computeIfAbsent(profile.toString(), x -> profile.newClientBuilder().build());
+        client = sharedClient.newBuilder().eventListener(transportMetrics).build();
+        sardine = new LoggedSardine(new OkHttpSardine(client));
         sardine.setCredentials(username, password);
+        credentials = username == null ? null : Credentials.basic(username, password);
         existDirs = new ExistDirCacheManager(existDirCachePath);
         this.sessionDir = sessionDir;
+        this.transferEngine = new TransferEngine(parallelism, maxRetries, retryBackoffMillis);
     }
 
     @Override
     public boolean exists(String path) throws IOException {
         String absPath = getAbsPath(path);
+        checkDirCache();
         if (existDirs.contains(absPath)) {
             return true;
         }
-        return sardine.exists(absPath);
+        return existsAbs(absPath);
+    }
+
+    @Override
+    public List<String> list(String dir) throws IOException {
+        return new ArrayList<>(listing(getAbsPath(dir)).sizes.keySet());
+    }
+
+    @Override
+    public long length(String path) throws IOException {
+        String absPath = getAbsPath(path);
+        Long size = listing(PathUtils.parent(absPath)).sizes.get(PathUtils.getName(absPath));
+        return size == null ? -1 : size;
+    }
+
+    /**
+     * 内容寻址的对象和 pack 通过上级目录的列表判断. refs, info/packs, packs.old 等多个客户端用来协调的文件
+     * 会被别人改动, 总是直接查询
+     */
+    private boolean existsAbs(String absPath) throws IOException {
+        String parent = PathUtils.parent(absPath);
+        if (StringUtils.isEmpty(URI.create(parent).getPath()) || !LISTABLE_DIR.matcher(StringUtils.removeEnd(parent, "/")).find()) {
+            return sardine.exists(absPath);
+        }
+        try {
+            return listing(parent).sizes.containsKey(PathUtils.getName(absPath));
+        } catch (SardineException e) {
+            // 上级目录没有列表权限
+            log.debug("list {} failed: {}, check {} directly", parent, e.getStatusCode(), absPath);
+            return sardine.exists(absPath);
+        }
+    }
+
+    private DirListing listing(String absDir) throws IOException {
+        DirListing cached = listings.get(absDir);
+        if (cached != null) {
+            long now = System.currentTimeMillis();
+            if (now - cached.loadTime < listingTtlMillis) {
+                return cached;
+            }
+            if (cached.etag != null && cached.etag.equals(etag(absDir))) {
+                cached.loadTime = now;
+                return cached;
+            }
+        }
+        DirListing loaded = loadListing(absDir);
+        listings.put(absDir, loaded);
+        return loaded;
+    }
+
+    private DirListing loadListing(String absDir) throws IOException {
+        List<DavResource> resources;
+        try {
+            resources = sardine.list(absDir, 1);
+        } catch (SardineException e) {
+            if (e.getStatusCode() == 404) {
+                return new DirListing();
+            }
+            throw e;
+        }
+        String dirPath = StringUtils.removeEnd(URI.create(absDir).getPath(), "/");
+        DirListing listing = new DirListing();
+        for (DavResource resource : resources) {
+            // 结果里包含目录本身
+            if (StringUtils.removeEnd(resource.getPath(), "/").equals(dirPath)) {
+                listing.etag = resource.getEtag();
+                continue;
+            }
+            Long size = resource.getContentLength();
+            listing.sizes.put(resource.getName(), resource.isDirectory() || size == null ? -1 : size);
+        }
+        log.debug("listed {}, {} entries", absDir, listing.sizes.size());
+        return listing;
+    }
+
+    /**
+     * 只取目录本身的 ETag, 目录不存在时返回 null
+     */
+    private String etag(String absDir) throws IOException {
+        try {
+            List<DavResource> resources = sardine.list(absDir, 0);
+            return resources.isEmpty() ? null : resources.get(0).getEtag();
+        } catch (SardineException e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 自己的修改直接更新已缓存的列表, 不用重新列目录
+     */
+    private void listingAdded(String absPath, long size) {
+        DirListing listing = listings.get(PathUtils.parent(absPath));
+        if (listing != null) {
+            listing.sizes.put(PathUtils.getName(absPath), size);
+        }
+    }
+
+    /**
+     * @return 删除前缓存的大小, 没有缓存时返回 -1
+     */
+    private long listingRemoved(String absPath) {
+        DirListing listing = listings.get(PathUtils.parent(absPath));
+        Long size = null;
+        if (listing != null) {
+            size = listing.sizes.remove(PathUtils.getName(absPath));
+        }
+        listings.keySet().removeIf(x -> x.equals(absPath) || x.startsWith(absPath + "/"));
+        return size == null ? -1 : size;
+    }
+
+    public TransportMetrics.Stats getTransportStats() {
+        return transportMetrics.getStats();
+    }
+
+    public void setListingTtlMillis(long listingTtlMillis) {
+        this.listingTtlMillis = listingTtlMillis;
     }
 
     @Override
     public void upload(String path, String targetPath) throws IOException {
         String absPath = getAbsPath(targetPath);
         forceMkdirParent(absPath);
-        sardine.put(absPath, new File(path), null);
+        File file = new File(path);
+        long chunkSize = transportProfile.getChunkSize();
+        if (chunkSize > 0 && file.length() > chunkSize && transportProfile.getChunkedUpload() == TransportProfile.ChunkedUpload.nextcloud) {
+            uploadNextcloudChunks(file, absPath);
+        } else if (chunkSize > 0 && file.length() > chunkSize && transportProfile.getChunkedUpload() == TransportProfile.ChunkedUpload.partialUpdate) {
+            uploadPartialUpdates(file, absPath);
+        } else {
+            sardine.put(absPath, file, null);
+        }
+        listingAdded(absPath, file.length());
+        generationTouched(absPath);
     }
 
 
+    /**
+     * 长度未知时用 chunked 编码. 流只能读一次, OkHttp 不会在连接失败时重发, 重试由 TransferEngine 从新的来源发起
+     */
+    @Override
+    public void upload(InputStream inputStream, long length, String targetPath) throws IOException {
+        String absPath = getAbsPath(targetPath);
+        forceMkdirParent(absPath);
+        RequestBody body = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return OCTET_STREAM;
+            }
+
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public boolean isOneShot() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                sink.writeAll(Okio.source(inputStream));
+            }
+        };
+        execute(request(absPath).put(body), "upload");
+        listingAdded(absPath, length);
+        generationTouched(absPath);
+    }
+
     @Override
     public void uploadBatch(List<TransportMapping> mappings) throws IOException {
+        uploadBatch(mappings, x -> upload(x.getLocalPath(), x.getRemotePath()));
+    }
+
+    /**
+     * mapping 的 localPath 为空, session 只按 remotePath 记录
+     */
+    @Override
+    public void uploadBatch(Collection<String> targetPaths, ContentSource source) throws IOException {
+        if (targetPaths.isEmpty()) {
+            return;
+        }
+        List<TransportMapping> mappings = targetPaths.stream().distinct().map(x -> TransportMapping.of(null, x)).collect(Collectors.toList());
+        uploadBatch(mappings, x -> upload(source.read(x.getRemotePath()), x.getRemotePath()));
+    }
+
+    private void uploadBatch(List<TransportMapping> mappings, TransferEngine.Transfer transfer) throws IOException {
         Session session = new Session(sessionDir, Session.generateSessionId(Session.TransportType.upload,mappings));
         session.start(mappings);
+        List<TransportMapping> pending = new ArrayList<>();
         for (TransportMapping mapping : mappings) {
             if (session.isDone(mapping)){
                 log.debug("uploaded, no upload again. if something is wrong, delete session:{}", PathUtils.concat(sessionDir,session.getSessionId()));
                 continue;
             }
-            upload(mapping.getLocalPath(), mapping.getRemotePath());
-            session.done(mapping);
+            pending.add(mapping);
         }
+        transferEngine.execute(pending, transfer, session::done);
+        session.complete();
+    }
+
+    /**
+     * mapping 中 remotePath 是下载源, localPath 是目标
+     */
+    @Override
+    public void downloadBatch(List<TransportMapping> mappings) throws IOException {
+        if (mappings.isEmpty()) {
+            return;
+        }
+        Session session = new Session(sessionDir, Session.generateSessionId(Session.TransportType.download, mappings));
+        session.start(mappings);
+        List<TransportMapping> pending = new ArrayList<>();
+        for (TransportMapping mapping : mappings) {
+            if (session.isDone(mapping) && new File(mapping.getLocalPath()).exists()) {
+                continue;
+            }
+            pending.add(mapping);
+        }
+        transferEngine.execute(pending, x -> download(x.getRemotePath(), x.getLocalPath()), session::done);
         session.complete();
     }
 
     private void forceMkdirParent(String absPath) throws IOException {
-        String parent;
-        if (existDirs.contains(PathUtils.parent(absPath))) {
+        String parent = PathUtils.parent(absPath);
+        checkDirCache();
+        if (existDirs.contains(parent)) {
             return;
         }
-        if (!sardine.exists(parent = PathUtils.parent(absPath))) {
-            forceMkdirParent(parent);
-            sardine.createDirectory(parent);
+        synchronized (mkdirLock) {
+            if (existDirs.contains(parent)) {
+                return;
+            }
+            if (!existsAbs(parent)) {
+                forceMkdirParent(parent);
+                createDirectory(parent);
+            }
             existDirs.add(parent);
         }
-        existDirs.add(parent);
     }
 
+    private void createDirectory(String absDir) throws IOException {
+        try {
+            sardine.createDirectory(absDir);
+            // 新建的目录是空的
+            listings.put(absDir, new DirListing());
+        } catch (SardineException e) {
+            // 405: 已经存在, 可能是别的客户端刚建的
+            if (e.getStatusCode() != 405) {
+                throw e;
+            }
+        }
+        listingAdded(absDir, -1);
+    }
+
+    public void setDirCacheGenerationPath(String dirCacheGenerationPath) {
+        this.dirCacheGenerationPath = dirCacheGenerationPath;
+    }
+
+    /**
+     * 第一次用到目录缓存时比较 generation, 远程被别的客户端重新打包或者重建过时清空缓存
+     */
+    private void checkDirCache() throws IOException {
+        if (dirCacheChecked || dirCacheGenerationPath == null) {
+            return;
+        }
+        synchronized (existDirs) {
+            if (dirCacheChecked) {
+                return;
+            }
+            String generation;
+            try {
+                generation = StringUtils.defaultString(etag(getAbsPath(dirCacheGenerationPath)));
+            } catch (SardineException e) {
+                // 无法确认时不信任缓存
+                log.debug("check generation failed: {}", e.getStatusCode());
+                generation = null;
+            }
+            String cached = existDirs.getGeneration();
+            if (generation == null || cached != null && !cached.equals(generation)) {
+                log.info("remote generation changed, clear exist dir cache");
+                existDirs.clear();
+            }
+            existDirs.setGeneration(generation);
+            dirCacheChecked = true;
+        }
+    }
+
+    /**
+     * 自己修改了 generation 文件, 缓存的目录仍然有效, 重新记录 ETag
+     */
+    private void generationTouched(String absPath) throws IOException {
+        if (!dirCacheChecked || !absPath.equals(getAbsPath(dirCacheGenerationPath))) {
+            return;
+        }
+        existDirs.setGeneration(StringUtils.defaultString(etag(absPath)));
+        existDirs.flush();
+    }
+
+    /**
+     * 先写到 .part 文件再改名, 中断或重试时不会留下不完整的目标文件.
+     * pack 或者大于 chunkSize 的文件开始下载时在 session 目录记下 ETag, 再次下载时用 Range + If-Range 从 .part 的末尾续传, 远程文件变了就从头下载.
+     * loose 对象这类小文件不记进度, 中断了重新下载
+     */
     @Override
     public void download(String path, String targetPath) throws IOException {
         String absPath = getAbsPath(path);
-        InputStream inputStream = sardine.get(absPath);
-        FileUtils.copyInputStreamToFile(inputStream, new File(targetPath));
+        File targetFile = new File(targetPath);
+        File partFile = new File(targetPath + ".part");
+        String progressKey = "download " + absPath + " " + targetFile.getAbsolutePath();
+        PartialTransfer progress = partFile.exists() ? loadProgress(progressKey) : null;
+        boolean tracked = progress != null;
+        long resumeFrom = tracked && progress.getEtag() != null ? partFile.length() : 0;
+
+        Request.Builder builder = request(absPath);
+        if (resumeFrom > 0) {
+            builder.header("Range", "bytes=" + resumeFrom + "-");
+            builder.header("If-Range", progress.getEtag());
+        }
+        try (Response response = client.newCall(builder.build()).execute()) {
+            ResponseBody body = response.body();
+            if (response.code() == 416 && resumeFrom > 0) {
+                // 上次已经下载完, 还没来得及改名
+                log.debug("{} already downloaded", absPath);
+            } else if (!response.isSuccessful() || body == null) {
+                throw new SardineException("download failed: " + absPath, response.code(), response.message());
+            } else {
+                boolean append = response.code() == 206 && resumeFrom > 0;
+                if (append && !StringUtils.startsWith(response.header("Content-Range"), "bytes " + resumeFrom + "-")) {
+                    throw new IOException("unexpected Content-Range " + response.header("Content-Range") + " for " + absPath);
+                }
+                if (append) {
+                    log.info("resume download {} from {}", absPath, resumeFrom);
+                } else if (isResumable(absPath, body.contentLength())) {
+                    String etag = response.header("ETag");
+                    PartialTransfer newProgress = new PartialTransfer();
+                    // If-Range 只能用强 ETag
+                    newProgress.setEtag(etag == null || etag.startsWith("W/") ? null : etag);
+                    saveProgress(progressKey, newProgress);
+                    tracked = true;
+                }
+                FileUtils.forceMkdirParent(partFile);
+                try (InputStream inputStream = body.byteStream(); OutputStream outputStream = new FileOutputStream(partFile, append)) {
+                    IOUtils.copyLarge(inputStream, outputStream);
+                }
+            }
+        }
+        Files.move(partFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (tracked) {
+            deleteProgress(progressKey);
+        }
+    }
+
+    private boolean isResumable(String absPath, long contentLength) {
+        long chunkSize = transportProfile.getChunkSize();
+        return PACK_PATH.matcher(absPath).find() || (chunkSize > 0 && contentLength > chunkSize);
+    }
+
+    /**
+     * nextcloud 分块上传: 块上传到 uploads 下的临时目录, 全部完成后 MOVE .file 合并到目标位置.
+     * 临时目录名由文件决定, 重试时列出已经上传完整的块跳过. 块大小记在 session 目录, 续传时不变
+     */
+    private void uploadNextcloudChunks(File file, String absPath) throws IOException {
+        String uploadsUrl = nextcloudUploadsUrl();
+        if (uploadsUrl == null) {
+            log.warn("nextcloud uploads url unknown, upload {} in one request", absPath);
+            sardine.put(absPath, file, null);
+            return;
+        }
+        String progressKey = "upload " + absPath + " " + file.getAbsolutePath();
+        PartialTransfer progress = loadProgress(progressKey);
+        if (progress == null) {
+            progress = new PartialTransfer();
+            progress.setTransferId("jgit-" + ObjectUtils.sha1hash((absPath + " " + file.length() + " " + file.lastModified()).getBytes(StandardCharsets.UTF_8)));
+            progress.setChunkSize(transportProfile.getChunkSize());
+            saveProgress(progressKey, progress);
+        }
+        String uploadDir = uploadsUrl + "/" + progress.getTransferId();
+        String destination = HttpUrl.get(absPath).toString();
+
+        Map<String, Long> uploadedChunks = new HashMap<>();
+        try {
+            for (DavResource resource : sardine.list(uploadDir, 1)) {
+                uploadedChunks.put(resource.getName(), resource.getContentLength());
+            }
+        } catch (SardineException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+            execute(request(uploadDir).method("MKCOL", null).header("Destination", destination), "mkcol");
+        }
+
+        long chunkSize = progress.getChunkSize();
+        long length = file.length();
+        for (int i = 0; i * chunkSize < length; i++) {
+            long start = i * chunkSize;
+            long chunkLength = Math.min(chunkSize, length - start);
+            String chunkName = String.format("%05d", i + 1);
+            if (Objects.equals(uploadedChunks.get(chunkName), chunkLength)) {
+                continue;
+            }
+            execute(request(uploadDir + "/" + chunkName).put(fileSlice(file, start, chunkLength))
+                    .header("Destination", destination)
+                    .header("OC-Total-Length", String.valueOf(length)), "upload chunk");
+            log.debug("uploaded chunk {} of {}", chunkName, absPath);
+        }
+        execute(request(uploadDir + "/.file").method("MOVE", null)
+                .header("Destination", destination)
+                .header("Overwrite", "T")
+                .header("OC-Total-Length", String.valueOf(length)), "move chunks");
+        deleteProgress(progressKey);
     }
 
+    /**
+     * 配置的 uploads 地址, 没有配置时从 .../remote.php/dav/files/{user}/... 推断
+     */
+    private String nextcloudUploadsUrl() {
+        if (StringUtils.isNotBlank(transportProfile.getChunkUploadUrl())) {
+            return StringUtils.removeEnd(transportProfile.getChunkUploadUrl(), "/");
+        }
+        String marker = "/remote.php/dav/files/";
+        int index = basePath.indexOf(marker);
+        if (index < 0) {
+            return null;
+        }
+        String user = StringUtils.substringBefore(basePath.substring(index + marker.length()), "/");
+        return basePath.substring(0, index) + "/remote.php/dav/uploads/" + user;
+    }
+
+    /**
+     * SabreDAV 的 partial update: 先上传到 .part, 之后每块用 PATCH 追加, 完成后 MOVE 到目标位置.
+     * 续传的位置就是远程 .part 的大小, 不需要本地记录
+     */
+    private void uploadPartialUpdates(File file, String absPath) throws IOException {
+        String partPath = absPath + ".part";
+        long length = file.length();
+        long offset = remoteLength(partPath);
+        if (offset > length) {
+            sardine.delete(partPath);
+            offset = -1;
+        }
+        long chunkSize = transportProfile.getChunkSize();
+        if (offset < 0) {
+            long chunkLength = Math.min(chunkSize, length);
+            execute(request(partPath).put(fileSlice(file, 0, chunkLength)), "upload");
+            offset = chunkLength;
+        } else if (offset > 0) {
+            log.info("resume upload {} from {}", absPath, offset);
+        }
+        while (offset < length) {
+            long chunkLength = Math.min(chunkSize, length - offset);
+            execute(request(partPath).patch(fileSlice(file, offset, chunkLength))
+                    .header("Content-Type", "application/x-sabredav-partialupdate")
+                    .header("X-Update-Range", "bytes=" + offset + "-" + (offset + chunkLength - 1)), "partial update");
+            offset += chunkLength;
+        }
+        sardine.move(partPath, absPath, true);
+    }
+
+    /**
+     * 不使用目录列表缓存, 不存在时返回 -1
+     */
+    private long remoteLength(String absPath) throws IOException {
+        try {
+            List<DavResource> resources = sardine.list(absPath, 0);
+            if (resources.isEmpty() || resources.get(0).getContentLength() == null) {
+                return -1;
+            }
+            return resources.get(0).getContentLength();
+        } catch (SardineException e) {
+            if (e.getStatusCode() == 404) {
+                return -1;
+            }
+            throw e;
+        }
+    }
+
+    private static RequestBody fileSlice(File file, long start, long length) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return OCTET_STREAM;
+            }
+
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                    randomAccessFile.seek(start);
+                    sink.write(Okio.source(Channels.newInputStream(randomAccessFile.getChannel())), length);
+                }
+            }
+        };
+    }
+
+    private Request.Builder request(String url) {
+        Request.Builder builder = new Request.Builder().url(url);
+        if (credentials != null) {
+            builder.header("Authorization", credentials);
+        }
+        return builder;
+    }
+
+    private void execute(Request.Builder builder, String action) throws IOException {
+        Request request = builder.build();
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new SardineException(action + " failed: " + request.url(), response.code(), response.message());
+            }
+        }
+    }
 
+    private File progressFile(String progressKey) {
+        if (sessionDir == null) {
+            return null;
+        }
+        return new File(PathUtils.concat(sessionDir, "partial", ObjectUtils.sha1hash(progressKey.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private PartialTransfer loadProgress(String progressKey) throws IOException {
+        File file = progressFile(progressKey);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        return JsonUtils.readValue(file, PartialTransfer.class);
+    }
+
+    private void saveProgress(String progressKey, PartialTransfer progress) throws IOException {
+        File file = progressFile(progressKey);
+        if (file != null) {
+            FileUtils.writeStringToFile(file, JsonUtils.writeValueAsString(progress), StandardCharsets.UTF_8);
+        }
+    }
+
+    private void deleteProgress(String progressKey) {
+        File file = progressFile(progressKey);
+        if (file != null) {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+
+    /**
+     * 按深度分层, 上级目录先建好, 同一层的目录并发创建. 是否存在通过上级目录的列表判断, 每个上级目录只列一次
+     */
     @Override
     public void mkdir(Collection<String> dirPaths) throws IOException {
-        for (String dirPath : dirPaths) {
-            mkdir(dirPath);
+        checkDirCache();
+        TreeMap<Integer, List<TransportMapping>> levels = new TreeMap<>();
+        for (String dirPath : new TreeSet<>(dirPaths)) {
+            String absDir = getAbsPath(dirPath);
+            if (existDirs.contains(absDir)) {
+                continue;
+            }
+            int depth = StringUtils.countMatches(StringUtils.removeEnd(absDir, "/"), "/");
+            levels.computeIfAbsent(depth, x -> new ArrayList<>()).add(TransportMapping.of(absDir, absDir));
         }
+        if (levels.isEmpty()) {
+            return;
+        }
+        for (List<TransportMapping> level : levels.values()) {
+            List<TransportMapping> missing = new ArrayList<>();
+            for (TransportMapping mapping : level) {
+                if (existsAbs(mapping.getRemotePath())) {
+                    existDirs.add(mapping.getRemotePath());
+                } else {
+                    missing.add(mapping);
+                }
+            }
+            transferEngine.execute(missing, x -> createDirectory(x.getRemotePath()), x -> existDirs.add(x.getRemotePath()));
+        }
+        existDirs.flush();
     }
 
     @Override
     public void mkdir(String dir) throws IOException {
         String absDir = getAbsPath(dir);
+        checkDirCache();
         if (existDirs.contains(absDir)) {
             return;
         }
-        if (!sardine.exists(absDir)) {
-            sardine.createDirectory(absDir);
+        synchronized (mkdirLock) {
+            if (!existsAbs(absDir)) {
+                createDirectory(absDir);
+            }
             existDirs.add(absDir);
         }
-        existDirs.add(absDir);
     }
 
     @Override
@@ -120,7 +740,9 @@ public class SardineStorage extends AbstractStorage {
         try {
             String absPath = getAbsPath(path);
             sardine.delete(absPath);
+            listingRemoved(absPath);
             existDirs.delete(absPath);
+            generationTouched(absPath);
         } catch (SardineException e) {
             if (e.getStatusCode() != 404) {
                 throw e;
@@ -131,8 +753,32 @@ public class SardineStorage extends AbstractStorage {
     @Override
     public byte[] readFullyToByteArray(String path) throws IOException {
         String absPath = getAbsPath(path);
-        InputStream inputStream = sardine.get(absPath);
-        return IOUtils.toByteArray(inputStream);
+        try (InputStream inputStream = sardine.get(absPath)) {
+            return IOUtils.toByteArray(inputStream);
+        }
+    }
+
+    /**
+     * 用 Range 请求读取一段, 服务端不支持 Range 时跳过前面的内容
+     */
+    @Override
+    public byte[] readRange(String path, long offset, int length) throws IOException {
+        String absPath = getAbsPath(path);
+        Request.Builder builder = request(absPath)
+                .header("Range", "bytes=" + offset + "-" + (offset + length - 1));
+        try (Response response = client.newCall(builder.build()).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new SardineException("range read failed: " + absPath, response.code(), response.message());
+            }
+            try (InputStream inputStream = body.byteStream()) {
+                if (response.code() != 206) {
+                    log.warn("range not supported, read from start: {}", absPath);
+                    IOUtils.skipFully(inputStream, offset);
+                }
+                return IOUtils.toByteArray(inputStream, length);
+            }
+        }
     }
 
     @Override
@@ -150,6 +796,9 @@ public class SardineStorage extends AbstractStorage {
             return false;
         }
         sardine.move(getAbsPath(source), getAbsPath(target), overwrite);
+        listingAdded(getAbsPath(target), listingRemoved(getAbsPath(source)));
+        generationTouched(getAbsPath(source));
+        generationTouched(getAbsPath(target));
         return true;
     }
 
@@ -159,14 +808,35 @@ public class SardineStorage extends AbstractStorage {
             return false;
         }
         sardine.copy(getAbsPath(source), getAbsPath(target), overwrite);
+        listingAdded(getAbsPath(target), length(source));
+        generationTouched(getAbsPath(target));
         return true;
     }
 
+    /**
+     * 已经存在的远程目录, 持久化到 cachePath.
+     * <p>
+     * 第一行记录 generation, 和远程不一致时整个缓存作废. 新增的目录定期整体写入, 丢了只是多检查一次;
+     * 删除立即写入, 避免把不存在的目录当成存在.
+     */
     private static class ExistDirCacheManager {
 
+        private static final String GENERATION_PREFIX = "#generation ";
+
+        private static final long FLUSH_INTERVAL_MILLIS = 5_000;
+
         private String cachePath;
 
-        private final Set<String> existDirs = new HashSet<>();
+        private final Set<String> existDirs = ConcurrentHashMap.newKeySet();
+
+        /**
+         * null 表示还不知道, 例如旧格式的缓存文件
+         */
+        private String generation;
+
+        private boolean dirty;
+
+        private long lastFlushTime = System.currentTimeMillis();
 
         public ExistDirCacheManager(String cachePath) {
             if (StringUtils.isNotBlank(cachePath)) {
@@ -177,34 +847,103 @@ public class SardineStorage extends AbstractStorage {
                 } catch (IOException ignore) {
                 }
                 if (StringUtils.isNotBlank(s)) {
-                    String[] split = StringUtils.split(s, "\n");
-                    existDirs.addAll(Arrays.asList(split));
+                    for (String line : StringUtils.split(s, "\n")) {
+                        if (line.startsWith(GENERATION_PREFIX)) {
+                            generation = line.substring(GENERATION_PREFIX.length());
+                        } else {
+                            existDirs.add(line);
+                        }
+                    }
                 }
             }
         }
 
-        public void add(String relativePath) throws IOException {
-            if (existDirs.contains(relativePath)) {
+        public synchronized void add(String path) throws IOException {
+            if (!existDirs.add(path)) {
                 return;
             }
-            if (StringUtils.isNotBlank(cachePath)) {
-                FileUtils.writeLines(new File(cachePath), Collections.singletonList(relativePath), true);
+            dirty = true;
+            if (System.currentTimeMillis() - lastFlushTime >= FLUSH_INTERVAL_MILLIS) {
+                flush();
             }
-            existDirs.add(relativePath);
         }
 
         public boolean contains(String path) {
             return existDirs.contains(path);
         }
 
-        public void delete(String path) throws IOException {
-            if (contains(path)) {
-                existDirs.remove(path);
-                if (StringUtils.isNotBlank(cachePath)) {
-                    FileUtils.writeLines(new File(cachePath), existDirs);
-                }
+        public synchronized void delete(String path) throws IOException {
+            boolean removed = existDirs.remove(path);
+            removed |= existDirs.removeIf(x -> x.startsWith(StringUtils.appendIfMissing(path, "/")));
+            if (removed) {
+                dirty = true;
+                flush();
             }
         }
+
+        public synchronized void clear() {
+            existDirs.clear();
+            dirty = true;
+        }
+
+        public synchronized String getGeneration() {
+            return generation;
+        }
+
+        public synchronized void setGeneration(String generation) {
+            if (!Objects.equals(this.generation, generation)) {
+                this.generation = generation;
+                dirty = true;
+            }
+        }
+
+        /**
+         * 整体写到临时文件再替换, 中途失败不会留下写了一半的缓存
+         */
+        public synchronized void flush() throws IOException {
+            if (!dirty || StringUtils.isBlank(cachePath)) {
+                return;
+            }
+            List<String> lines = new ArrayList<>(existDirs.size() + 1);
+            if (generation != null) {
+                lines.add(GENERATION_PREFIX + generation);
+            }
+            lines.addAll(new TreeSet<>(existDirs));
+            File cacheFile = new File(cachePath);
+            File tmpFile = new File(cachePath + ".tmp");
+            FileUtils.writeLines(tmpFile, StandardCharsets.UTF_8.name(), lines, "\n");
+            Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+            lastFlushTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 断点续传的进度, 存在 session 目录下
+     */
+    @Data
+    private static class PartialTransfer {
+        /**
+         * 下载开始时远程文件的 ETag
+         */
+        private String etag;
+        /**
+         * 分块上传的临时目录名和块大小
+         */
+        private String transferId;
+        private long chunkSize;
+    }
+
+    private static class DirListing {
+
+        private volatile String etag;
+
+        private volatile long loadTime = System.currentTimeMillis();
+
+        /**
+         * name -> 文件大小, 目录和未知大小为 -1
+         */
+        private final Map<String, Long> sizes = new ConcurrentHashMap<>();
     }
 
     @Data
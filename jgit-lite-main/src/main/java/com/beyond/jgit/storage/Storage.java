@@ -1,18 +1,58 @@
 package com.beyond.jgit.storage;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 
 public interface Storage {
     boolean exists(String path) throws IOException;
+
+    /**
+     * 目录下直接包含的文件和目录名, 目录不存在时返回空
+     */
+    List<String> list(String dir) throws IOException;
+
+    /**
+     * 文件大小, 不存在或未知时返回 -1
+     */
+    long length(String path) throws IOException;
     void upload(String path, String targetPath) throws IOException;
+
+    /**
+     * 从流上传, 不需要先落到本地文件. 流只能读一次, 失败不重试
+     *
+     * @param length 未知时为 -1
+     */
+    void upload(InputStream inputStream, long length, String targetPath) throws IOException;
+
+    void upload(ByteBuffer buffer, String targetPath) throws IOException;
     void uploadBatch(List<TransportMapping> mappings) throws IOException;
+
+    /**
+     * 批量上传不在本地文件中的内容. 每次上传 (包括重试) 时才向 source 要内容, 传完就可以回收, 内存只和同时进行的上传数有关
+     */
+    void uploadBatch(Collection<String> targetPaths, ContentSource source) throws IOException;
+
+    interface ContentSource {
+        ByteBuffer read(String targetPath) throws IOException;
+    }
     void download(String path, String targetPath) throws IOException;
+
+    /**
+     * 批量下载, mapping 中 remotePath 为源, localPath 为目标
+     */
+    void downloadBatch(List<TransportMapping> mappings) throws IOException;
     void mkdir(Collection<String> dirPaths) throws IOException;
     void mkdir(String dir) throws IOException;
     void delete(String path) throws IOException;
     byte[] readFullyToByteArray(String path) throws IOException;
+
+    /**
+     * 读取文件中 [offset, offset + length) 这一段
+     */
+    byte[] readRange(String path, long offset, int length) throws IOException;
     String readFullToString(String path) throws IOException;
     String getBasePath();
 
@@ -0,0 +1,143 @@
+package com.beyond.jgit.storage;
+
+import com.thegrizzlylabs.sardineandroid.impl.SardineException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 并发执行一批传输, 单个请求失败时按指数退避重试.
+ * <p>
+ * 有一个传输最终失败后不再开始新的传输, 等已开始的结束后抛出第一个异常.
+ * 已完成的传输通过 callback 记录, 下次可以跳过.
+ */
+@Slf4j
+public class TransferEngine {
+
+    private final int parallelism;
+    private final int maxRetries;
+    private final long retryBackoffMillis;
+
+    private final ExecutorService executor;
+
+    public TransferEngine(int parallelism, int maxRetries, long retryBackoffMillis) {
+        this.parallelism = Math.max(1, parallelism);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryBackoffMillis = Math.max(0, retryBackoffMillis);
+        if (this.parallelism > 1) {
+            AtomicInteger threadIndex = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(this.parallelism, this.parallelism, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "transfer-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+        } else {
+            this.executor = null;
+        }
+    }
+
+    public interface Transfer {
+        void run(TransportMapping mapping) throws IOException;
+    }
+
+    public interface Callback {
+        void done(TransportMapping mapping) throws IOException;
+    }
+
+    public void execute(List<TransportMapping> mappings, Transfer transfer, Callback callback) throws IOException {
+        if (executor == null || mappings.size() <= 1) {
+            for (TransportMapping mapping : mappings) {
+                withRetry(mapping, transfer);
+                callback.done(mapping);
+            }
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        List<Future<?>> futures = new ArrayList<>(mappings.size());
+        for (TransportMapping mapping : mappings) {
+            futures.add(executor.submit(() -> {
+                if (!failures.isEmpty()) {
+                    return null;
+                }
+                try {
+                    withRetry(mapping, transfer);
+                    callback.done(mapping);
+                } catch (IOException | RuntimeException e) {
+                    failures.add(e);
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(x -> x.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("transfer interrupted");
+        } catch (ExecutionException e) {
+            failures.add(e.getCause());
+        }
+
+        Throwable failure = failures.peek();
+        if (failure != null) {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            throw new IOException(failure);
+        }
+        log.debug("transferred {} files with {} threads, cost {}ms", mappings.size(), parallelism, System.currentTimeMillis() - startTime);
+    }
+
+    private void withRetry(TransportMapping mapping, Transfer transfer) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                transfer.run(mapping);
+                return;
+            } catch (IOException e) {
+                if (attempt >= maxRetries || !isRetryable(e)) {
+                    throw e;
+                }
+                long backoff = retryBackoffMillis << Math.min(attempt, 10);
+                // 加一点随机, 避免同时失败的请求同时重试
+                backoff += ThreadLocalRandom.current().nextLong(retryBackoffMillis / 2 + 1);
+                log.warn("transfer failed, retry {}/{} after {}ms: {} -> {}, {}", attempt + 1, maxRetries, backoff,
+                        mapping.getLocalPath(), mapping.getRemotePath(), e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("transfer interrupted");
+                }
+            }
+        }
+    }
+
+    /**
+     * 4xx 除了超时和限流都是请求本身的问题, 重试没有意义
+     */
+    private static boolean isRetryable(IOException e) {
+        if (e instanceof InterruptedIOException && !(e instanceof java.net.SocketTimeoutException)) {
+            return false;
+        }
+        if (e instanceof SardineException) {
+            int statusCode = ((SardineException) e).getStatusCode();
+            return statusCode < 400 || statusCode >= 500 || statusCode == 408 || statusCode == 429;
+        }
+        return true;
+    }
+}
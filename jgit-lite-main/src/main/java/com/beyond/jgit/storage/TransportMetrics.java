@@ -0,0 +1,75 @@
+package com.beyond.jgit.storage;
+
+import lombok.Data;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 统计请求数和新建/复用的连接数, 用来判断连接池参数是否合适
+ */
+public class TransportMetrics extends EventListener {
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failedCalls = new AtomicLong();
+    private final AtomicLong connectionsAcquired = new AtomicLong();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong http2ConnectionsOpened = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+
+    @Override
+    public void callStart(Call call) {
+        calls.incrementAndGet();
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        failedCalls.incrementAndGet();
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        connectionsOpened.incrementAndGet();
+        if (protocol == Protocol.HTTP_2) {
+            http2ConnectionsOpened.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol, IOException ioe) {
+        connectFailures.incrementAndGet();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+        connectionsAcquired.incrementAndGet();
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.setCalls(calls.get());
+        stats.setFailedCalls(failedCalls.get());
+        stats.setConnectionsOpened(connectionsOpened.get());
+        stats.setHttp2ConnectionsOpened(http2ConnectionsOpened.get());
+        stats.setConnectFailures(connectFailures.get());
+        // 没有新建连接就拿到的是池里复用的
+        stats.setConnectionsReused(Math.max(0, connectionsAcquired.get() - connectionsOpened.get()));
+        return stats;
+    }
+
+    @Data
+    public static class Stats {
+        private long calls;
+        private long failedCalls;
+        private long connectionsOpened;
+        private long connectionsReused;
+        private long http2ConnectionsOpened;
+        private long connectFailures;
+    }
+}
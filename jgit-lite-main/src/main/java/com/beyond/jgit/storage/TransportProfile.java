@@ -0,0 +1,77 @@
+package com.beyond.jgit.storage;
+
+import lombok.Data;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebDAV 连接的 http 参数. 参数相同的 remote 共用一个连接池
+ */
+@Data
+public class TransportProfile {
+
+    private int maxIdleConnections = 16;
+
+    private long keepAliveMillis = 5 * 60 * 1000;
+
+    /**
+     * 服务端支持时使用 HTTP/2 (https 通过 ALPN 协商), 多个请求复用一个连接
+     */
+    private boolean http2 = true;
+
+    private long connectTimeoutMillis = 10 * 1000;
+    private long readTimeoutMillis = 60 * 1000;
+    private long writeTimeoutMillis = 60 * 1000;
+
+    /**
+     * 异步请求的并发上限, 同步请求不受限制
+     */
+    private int maxRequests = 64;
+    private int maxRequestsPerHost = 16;
+
+    /**
+     * 超过这个大小的文件按块上传, 中断后可以续传. 0 表示不分块
+     */
+    private long chunkSize = 16 * 1024 * 1024;
+
+    private ChunkedUpload chunkedUpload = ChunkedUpload.none;
+
+    /**
+     * nextcloud 分块上传的 uploads 地址, 如 https://host/remote.php/dav/uploads/{user}. 为空时从 remote 地址推断
+     */
+    private String chunkUploadUrl;
+
+    public enum ChunkedUpload {
+        /**
+         * 整个文件一个 PUT
+         */
+        none,
+        /**
+         * nextcloud chunking v2, 块上传到 uploads 目录后 MOVE 合并
+         */
+        nextcloud,
+        /**
+         * SabreDAV partial update, 用 PATCH 追加到 .part 后 MOVE
+         */
+        partialUpdate
+    }
+
+    OkHttpClient.Builder newClientBuilder() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveMillis, TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                .protocols(http2 ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1) : Collections.singletonList(Protocol.HTTP_1_1))
+                .connectTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS)
+                .writeTimeout(writeTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,62 @@
+package com.beyond.jgit.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 记录各阶段的墙钟时间.
+ * <p>
+ * 同一阶段可以在多个线程中多次 start/stop, 记录第一次开始到最后一次结束, 阶段之间可以重叠.
+ */
+public class StageTimer {
+
+    private final long startTime = System.currentTimeMillis();
+
+    private final Map<String, long[]> stages = new LinkedHashMap<>();
+
+    public synchronized void start(String stage) {
+        long now = System.currentTimeMillis();
+        long[] span = stages.get(stage);
+        if (span == null) {
+            stages.put(stage, new long[]{now, now});
+        }
+    }
+
+    public synchronized void stop(String stage) {
+        long[] span = stages.get(stage);
+        if (span != null) {
+            span[1] = Math.max(span[1], System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return 阶段名 -> 耗时(ms), 按开始顺序
+     */
+    public synchronized Map<String, Long> getStageMillis() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : stages.entrySet()) {
+            result.put(entry.getKey(), entry.getValue()[1] - entry.getValue()[0]);
+        }
+        return result;
+    }
+
+    /**
+     * 从创建到最后一个阶段结束
+     */
+    public synchronized long getTotalMillis() {
+        long end = startTime;
+        for (long[] span : stages.values()) {
+            end = Math.max(end, span[1]);
+        }
+        return end - startTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("total=").append(getTotalMillis()).append("ms");
+        for (Map.Entry<String, Long> entry : getStageMillis().entrySet()) {
+            sb.append(", ").append(entry.getKey()).append('=').append(entry.getValue()).append("ms");
+        }
+        return sb.toString();
+    }
+}
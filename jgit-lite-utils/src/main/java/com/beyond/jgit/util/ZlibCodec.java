@@ -0,0 +1,118 @@
+package com.beyond.jgit.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib 编解码, Deflater/Inflater 按线程复用, 避免每次调用都新建流和 native 资源.
+ * <p>
+ * 输出格式与 {@link ZlibCompression} 原来的 stream 实现一致 (带 zlib 头), 新旧数据可以互相读取.
+ */
+public class ZlibCodec {
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    public static byte[] compress(byte[] bytes) {
+        return compress(bytes, 0, bytes.length, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public static byte[] compress(byte[] bytes, int level) {
+        return compress(bytes, 0, bytes.length, level);
+    }
+
+    public static byte[] compress(byte[] bytes, int offset, int len, int level) {
+        checkLevel(level);
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(bytes, offset, len);
+        deflater.finish();
+        byte[] out = new byte[compressBound(len)];
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            n += deflater.deflate(out, n, out.length - n);
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    public static byte[] decompress(byte[] bytes) throws IOException {
+        return decompress(bytes, 0, bytes.length, 0);
+    }
+
+    /**
+     * @param sizeHint 解压后的预估大小, 不知道时传 0. 预估准确时只分配一次输出数组.
+     */
+    public static byte[] decompress(byte[] bytes, int offset, int len, int sizeHint) throws IOException {
+        Inflater inflater = inflater(bytes, offset, len);
+        byte[] out = new byte[sizeHint > 0 ? sizeHint : Math.max(64, len * 3)];
+        int n = 0;
+        try {
+            while (!inflater.finished()) {
+                if (n == out.length) {
+                    // 预估正好等于实际大小时, 先用1个字节试探是否真的结束, 避免多扩容一次
+                    byte[] probe = new byte[1];
+                    if (inflater.inflate(probe) == 0) {
+                        if (inflater.finished()) {
+                            break;
+                        }
+                        if (inflater.needsInput() || inflater.needsDictionary()) {
+                            throw new IOException("truncated zlib data");
+                        }
+                        continue;
+                    }
+                    out = Arrays.copyOf(out, out.length * 2);
+                    out[n++] = probe[0];
+                    continue;
+                }
+                int inflated = inflater.inflate(out, n, out.length - n);
+                if (inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated zlib data");
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    /**
+     * 当前线程的 Inflater, 已经 reset 并设置好输入. 调用方需要自己控制解压过程时使用, 不要 end()
+     */
+    public static Inflater inflater(byte[] bytes, int offset, int len) {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(bytes, offset, len);
+        return inflater;
+    }
+
+    /**
+     * 释放当前线程持有的 native 资源. 线程池里的短命线程结束前可以调用.
+     */
+    public static void release() {
+        DEFLATERS.get().end();
+        DEFLATERS.remove();
+        INFLATERS.get().end();
+        INFLATERS.remove();
+    }
+
+    /**
+     * zlib compressBound + zlib 头尾, 绝大多数情况下一次 deflate 就够
+     */
+    private static int compressBound(int len) {
+        return len + (len >> 12) + (len >> 14) + (len >> 25) + 13 + 6;
+    }
+
+    private static void checkLevel(int level) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        }
+    }
+}
@@ -5,7 +5,6 @@ import com.jcraft.jzlib.InflaterInputStream;
 
 import java.io.*;
 import java.util.zip.DataFormatException;
-import java.util.zip.DeflaterInputStream;
 
 /**
  * Example program to demonstrate how to use zlib compression with
@@ -52,20 +51,18 @@ public class ZlibCompression {
         }
     }
 
+    /**
+     * @see ZlibCodec#compress(byte[])
+     */
     public static byte[] compressBytes(byte[] bytes) throws IOException {
-        try (InputStream in = new DeflaterInputStream(new ByteArrayInputStream(bytes));
-             ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            shovelInToOut(in, out);
-            return out.toByteArray();
-        }
+        return ZlibCodec.compress(bytes);
     }
 
+    /**
+     * @see ZlibCodec#decompress(byte[])
+     */
     public static byte[] decompressBytes(byte[] bytes) throws IOException {
-        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(bytes));
-             ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            shovelInToOut(in, out);
-            return out.toByteArray();
-        }
+        return ZlibCodec.decompress(bytes);
     }
 
 
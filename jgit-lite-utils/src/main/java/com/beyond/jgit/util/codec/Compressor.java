@@ -0,0 +1,35 @@
+package com.beyond.jgit.util.codec;
+
+import java.io.IOException;
+
+/**
+ * pack 内对象的压缩算法, id 写在 pack header 的 version 里
+ */
+public interface Compressor {
+
+    int getId();
+
+    String getName();
+
+    byte[] compress(byte[] bytes, int offset, int len);
+
+    /**
+     * @param level 压缩级别, 只有 zlib 使用, 其他算法忽略
+     */
+    default byte[] compress(byte[] bytes, int offset, int len, int level) {
+        return compress(bytes, offset, len);
+    }
+
+    /**
+     * @param sizeHint 解压后的预估大小, 不知道时传 0
+     */
+    byte[] decompress(byte[] bytes, int offset, int len, int sizeHint) throws IOException;
+
+    default byte[] compress(byte[] bytes) {
+        return compress(bytes, 0, bytes.length);
+    }
+
+    default byte[] decompress(byte[] bytes) throws IOException {
+        return decompress(bytes, 0, bytes.length, 0);
+    }
+}
@@ -0,0 +1,77 @@
+package com.beyond.jgit.util.codec;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.NameFileFilter;
+import org.apache.commons.io.filefilter.NotFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 对比各压缩算法的压缩率和吞吐. 参数: 仓库目录 [轮数], .git 目录不参与
+ */
+public class CompressorBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: CompressorBenchmark <repoDir> [rounds]");
+            return;
+        }
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Collection<File> files = FileUtils.listFiles(new File(args[0]), TrueFileFilter.INSTANCE, new NotFileFilter(new NameFileFilter(".git")));
+        List<byte[]> payloads = new ArrayList<>();
+        long rawSize = 0;
+        for (File file : files) {
+            byte[] bytes = FileUtils.readFileToByteArray(file);
+            payloads.add(bytes);
+            rawSize += bytes.length;
+        }
+        System.out.printf("files: %d, raw size: %d bytes%n", payloads.size(), rawSize);
+
+        for (Compressor compressor : Arrays.asList(Compressors.ZLIB, Compressors.ZSTD, Compressors.LZ4)) {
+            // 预热
+            run(compressor, payloads);
+            long compressNanos = 0;
+            long decompressNanos = 0;
+            long compressedSize = 0;
+            for (int i = 0; i < rounds; i++) {
+                long[] result = run(compressor, payloads);
+                compressNanos += result[0];
+                decompressNanos += result[1];
+                compressedSize = result[2];
+            }
+            double mb = rawSize * (double) rounds / 1024 / 1024;
+            System.out.printf("%-5s ratio: %.3f, compress: %.1f MB/s, decompress: %.1f MB/s%n",
+                    compressor.getName(),
+                    rawSize == 0 ? 0 : compressedSize / (double) rawSize,
+                    mb / (compressNanos / 1e9),
+                    mb / (decompressNanos / 1e9));
+        }
+    }
+
+    private static long[] run(Compressor compressor, List<byte[]> payloads) throws IOException {
+        List<byte[]> compressed = new ArrayList<>(payloads.size());
+        long compressedSize = 0;
+        long start = System.nanoTime();
+        for (byte[] payload : payloads) {
+            byte[] bytes = compressor.compress(payload);
+            compressed.add(bytes);
+            compressedSize += bytes.length;
+        }
+        long compressNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < compressed.size(); i++) {
+            byte[] bytes = compressor.decompress(compressed.get(i), 0, compressed.get(i).length, payloads.get(i).length);
+            if (bytes.length != payloads.get(i).length) {
+                throw new RuntimeException("size mismatch");
+            }
+        }
+        long decompressNanos = System.nanoTime() - start;
+        return new long[]{compressNanos, decompressNanos, compressedSize};
+    }
+}
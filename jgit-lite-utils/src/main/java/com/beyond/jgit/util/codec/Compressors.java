@@ -0,0 +1,42 @@
+package com.beyond.jgit.util.codec;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按 id 或名称取 {@link Compressor}. 实现都是无状态的, 全局共享
+ */
+public class Compressors {
+
+    public static final Compressor ZLIB = new ZlibCompressor();
+    public static final Compressor ZSTD = new ZstdCompressor();
+    public static final Compressor LZ4 = new Lz4Compressor();
+
+    private static final Map<Integer, Compressor> ID_MAP = new LinkedHashMap<>();
+
+    static {
+        for (Compressor compressor : new Compressor[]{ZLIB, ZSTD, LZ4}) {
+            ID_MAP.put(compressor.getId(), compressor);
+        }
+    }
+
+    public static Compressor of(int id) {
+        Compressor compressor = ID_MAP.get(id);
+        if (compressor == null) {
+            throw new RuntimeException("unsupported compressor id: " + id);
+        }
+        return compressor;
+    }
+
+    public static Compressor of(String name) {
+        if (name == null || name.isEmpty()) {
+            return ZLIB;
+        }
+        for (Compressor compressor : ID_MAP.values()) {
+            if (compressor.getName().equalsIgnoreCase(name)) {
+                return compressor;
+            }
+        }
+        throw new RuntimeException("unsupported compressor: " + name);
+    }
+}
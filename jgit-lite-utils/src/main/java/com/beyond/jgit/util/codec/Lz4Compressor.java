@@ -0,0 +1,60 @@
+package com.beyond.jgit.util.codec;
+
+import com.beyond.jgit.util.FormatUtils;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * lz4 block 格式不记录原始长度, 压缩结果前面加 4 字节原始长度
+ */
+public class Lz4Compressor implements Compressor {
+
+    public static final int ID = 3;
+
+    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "lz4";
+    }
+
+    @Override
+    public byte[] compress(byte[] bytes, int offset, int len) {
+        byte[] out = new byte[4 + compressor.maxCompressedLength(len)];
+        FormatUtils.writeIntTo(len, out, 0);
+        int n = compressor.compress(bytes, offset, len, out, 4, out.length - 4);
+        return Arrays.copyOf(out, 4 + n);
+    }
+
+    @Override
+    public byte[] decompress(byte[] bytes, int offset, int len, int sizeHint) throws IOException {
+        if (len < 4) {
+            throw new IOException("truncated lz4 data");
+        }
+        int size = FormatUtils.readNextInt(bytes, offset);
+        if (size < 0) {
+            throw new IOException("lz4 length error");
+        }
+        byte[] out = new byte[size];
+        try {
+            int read = decompressor.decompress(bytes, offset + 4, out, 0, size);
+            if (read != len - 4) {
+                throw new IOException("lz4 length mismatch");
+            }
+        } catch (LZ4Exception e) {
+            throw new IOException(e);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,36 @@
+package com.beyond.jgit.util.codec;
+
+import com.beyond.jgit.util.ZlibCodec;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+public class ZlibCompressor implements Compressor {
+
+    public static final int ID = 1;
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "zlib";
+    }
+
+    @Override
+    public byte[] compress(byte[] bytes, int offset, int len) {
+        return ZlibCodec.compress(bytes, offset, len, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    @Override
+    public byte[] compress(byte[] bytes, int offset, int len, int level) {
+        return ZlibCodec.compress(bytes, offset, len, level);
+    }
+
+    @Override
+    public byte[] decompress(byte[] bytes, int offset, int len, int sizeHint) throws IOException {
+        return ZlibCodec.decompress(bytes, offset, len, sizeHint);
+    }
+}
@@ -0,0 +1,56 @@
+package com.beyond.jgit.util.codec;
+
+import com.github.luben.zstd.Zstd;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class ZstdCompressor implements Compressor {
+
+    public static final int ID = 2;
+
+    private final int level;
+
+    public ZstdCompressor() {
+        this(3);
+    }
+
+    public ZstdCompressor(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "zstd";
+    }
+
+    @Override
+    public byte[] compress(byte[] bytes, int offset, int len) {
+        byte[] out = new byte[(int) Zstd.compressBound(len)];
+        long n = Zstd.compressByteArray(out, 0, out.length, bytes, offset, len, level);
+        if (Zstd.isError(n)) {
+            throw new RuntimeException("zstd compress fail: " + Zstd.getErrorName(n));
+        }
+        return Arrays.copyOf(out, (int) n);
+    }
+
+    @Override
+    public byte[] decompress(byte[] bytes, int offset, int len, int sizeHint) throws IOException {
+        // zstd 帧头里带了原始大小
+        long size = Zstd.decompressedSize(bytes, offset, len);
+        if (size < 0 || size > Integer.MAX_VALUE) {
+            throw new IOException("zstd frame content size unknown");
+        }
+        byte[] out = new byte[(int) size];
+        long n = Zstd.decompressByteArray(out, 0, out.length, bytes, offset, len);
+        if (Zstd.isError(n)) {
+            throw new IOException("zstd decompress fail: " + Zstd.getErrorName(n));
+        }
+        return n == out.length ? out : Arrays.copyOf(out, (int) n);
+    }
+}